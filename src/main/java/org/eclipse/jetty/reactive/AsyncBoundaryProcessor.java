@@ -0,0 +1,318 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A processor that signals its subscriber from threads other than those of its publisher.
+ * <p>The publisher and the subscriber are each set once: a second subscription is cancelled
+ * (rule 2.5) and a second subscriber is rejected, and the subscriber is passed its subscription
+ * only once both are set.  The signals are then handled by a single drainer at a time, that the
+ * other signals tell to look again.  Once terminated, the subscriber is dropped (rule 3.13) and
+ * items received are released to the publisher.</p>
+ *
+ * @param <T> the type of the items
+ * @param <R> the type of the results
+ */
+abstract class AsyncBoundaryProcessor<T, R> implements Processor<T, R>
+{
+    private final AtomicInteger work = new AtomicInteger();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicReference<Subscription> upstream = new AtomicReference<>();
+    private final AtomicReference<Subscriber<? super R>> subscriber = new AtomicReference<>();
+    private final AtomicBoolean connected = new AtomicBoolean();
+    private final int prefetch;
+    private volatile boolean ready;
+    private volatile boolean done;
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+    private volatile Throwable invalid;
+    private boolean primed;
+    private boolean terminated;
+
+    /**
+     * @param prefetch the number of items requested from the publisher once the subscriber has demand
+     */
+    AsyncBoundaryProcessor(int prefetch)
+    {
+        this.prefetch = prefetch;
+    }
+
+    @Override
+    public void onSubscribe(Subscription s)
+    {
+        if (s == null)
+            throw new NullPointerException();
+        if (!upstream.compareAndSet(null, s))
+        {
+            s.cancel();
+            return;
+        }
+        connect();
+    }
+
+    @Override
+    public void onNext(T item)
+    {
+        if (item == null)
+            throw new NullPointerException();
+        if (done || cancelled || invalid != null)
+        {
+            release(item);
+            return;
+        }
+        next(item);
+    }
+
+    @Override
+    public void onError(Throwable t)
+    {
+        if (t == null)
+            throw new NullPointerException();
+        failure = t;
+        done = true;
+        schedule();
+    }
+
+    @Override
+    public void onComplete()
+    {
+        done = true;
+        schedule();
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super R> s)
+    {
+        if (s == null)
+            throw new NullPointerException();
+        if (!subscriber.compareAndSet(null, s))
+            throw new IllegalStateException("already subscribed");
+        connect();
+    }
+
+    /**
+     * Handles an item received while the stream is not terminating.
+     * @param item the item
+     */
+    abstract void next(T item);
+
+    /**
+     * Runs {@link #drain()}, now or from another thread, for the signals counted in the work.
+     */
+    abstract void dispatch();
+
+    /**
+     * Signals the subscriber.
+     * @param subscriber the subscriber
+     * @return true if the drain should yield, keeping the work counted, and be dispatched again
+     */
+    abstract boolean emit(Subscriber<? super R> subscriber);
+
+    /**
+     * @return true if no result is left to signal
+     */
+    abstract boolean isEmpty();
+
+    /**
+     * Releases the items held once terminated.  Only called by the drainer.
+     */
+    void clear()
+    {
+    }
+
+    /**
+     * @param result a result that the subscriber released
+     */
+    void releaseResult(R result)
+    {
+    }
+
+    Subscription upstream()
+    {
+        return upstream.get();
+    }
+
+    boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * @param item an item that is not passed on, released to the publisher
+     */
+    void release(T item)
+    {
+        ReactiveSupport.release(upstream.get(), item);
+    }
+
+    /**
+     * Cancels the publisher and fails the subscriber.
+     * @param cause the cause of the failure
+     */
+    void invalidate(Throwable cause)
+    {
+        upstream.get().cancel();
+        invalid = cause;
+        schedule();
+    }
+
+    void schedule()
+    {
+        // Only one drainer at a time, that the other signals tell to look again
+        if (work.getAndIncrement() == 0)
+            dispatch();
+    }
+
+    void drain()
+    {
+        int missed = 1;
+        while (true)
+        {
+            if (terminated)
+            {
+                // Release the items received while terminating
+                clear();
+            }
+            else if (ready && emit(subscriber.get()))
+            {
+                dispatch();
+                return;
+            }
+            missed = work.addAndGet(-missed);
+            if (missed == 0)
+                return;
+        }
+    }
+
+    /**
+     * @return the demand of the subscriber, having requested the first items from the publisher once there is some
+     */
+    long requested()
+    {
+        long requested = demand.get();
+        if (!primed && requested > 0)
+        {
+            primed = true;
+            upstream.get().request(prefetch);
+        }
+        return requested;
+    }
+
+    void emitted(long requested, long emitted)
+    {
+        if (emitted > 0 && requested != Long.MAX_VALUE)
+            demand.addAndGet(-emitted);
+    }
+
+    /**
+     * Terminates the subscriber if the stream is cancelled, failed or done.
+     * @param subscriber the subscriber
+     * @return true if terminated
+     */
+    boolean terminal(Subscriber<? super R> subscriber)
+    {
+        if (cancelled)
+        {
+            terminate();
+            return true;
+        }
+        Throwable invalid = this.invalid;
+        if (invalid != null)
+        {
+            terminate();
+            subscriber.onError(invalid);
+            return true;
+        }
+        // Read done before checking the results, that may be added until done
+        if (done && isEmpty())
+        {
+            terminate();
+            Throwable failure = this.failure;
+            if (failure != null)
+                subscriber.onError(failure);
+            else
+                subscriber.onComplete();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops signalling the subscriber, and drops the reference to it (rule 3.13).
+     */
+    void terminate()
+    {
+        terminated = true;
+        subscriber.set(ReactiveSupport.DETACHED);
+        clear();
+    }
+
+    private void connect()
+    {
+        // Only once both the publisher and the subscriber are set
+        Subscriber<? super R> subscriber = this.subscriber.get();
+        if (subscriber == null || upstream.get() == null || !connected.compareAndSet(false, true))
+            return;
+        subscriber.onSubscribe(new Downstream());
+
+        // Drain the signals received before or during onSubscribe
+        ready = true;
+        schedule();
+    }
+
+    private class Downstream implements PooledSubscription<R>
+    {
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                invalidate(new IllegalArgumentException("Rule 3.9: request " + n));
+                return;
+            }
+            demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            schedule();
+        }
+
+        @Override
+        public void cancel()
+        {
+            if (cancelled)
+                return;
+            cancelled = true;
+            upstream.get().cancel();
+            schedule();
+        }
+
+        @Override
+        public void release(R result)
+        {
+            releaseResult(result);
+        }
+    }
+}
@@ -20,6 +20,9 @@ package org.eclipse.jetty.reactive;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
 import javax.servlet.AsyncContext;
@@ -27,30 +30,95 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.Locker;
+import org.eclipse.jetty.util.thread.Scheduler;
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
 
+/**
+ * A {@link Subscriber} that writes buffers to the response using async IO.
+ * <p>Up to {@code prefetch} buffers are requested ahead of the writes.  If an aggregation
+ * size is configured, buffers smaller than it are copied into a pooled aggregate buffer,
+ * released and replaced by further requests, so that a chatty publisher results in fewer,
+ * larger writes.  The aggregate is written when it is full, when the next buffer does not
+ * fit, when the output becomes ready again after a previous write, or at completion.  With
+ * a flush delay set by {@link #setFlushDelay(Scheduler, long, TimeUnit)}, a partial aggregate
+ * is held for up to that delay while the output is idle, waiting for more content.</p>
+ */
 public class AsyncIOSubscriber implements Subscriber<ByteBuffer>, WriteListener
 {
+    private static final Logger LOG = Log.getLogger(AsyncIOSubscriber.class);
+
+    private final Locker lock = new Locker();
+    private final Deque<ByteBuffer> queue = new ArrayDeque<>();
     private final AsyncContext context;
     private final BiConsumer<AsyncIOSubscriber, ByteBuffer> consumer;
+    private final ByteBufferPool pool;
+    private final int prefetch;
+    private final int aggregationSize;
+    private Scheduler scheduler;
+    private long flushDelay;
     private Subscription subscription;
-    private boolean pending;
+    private ByteBuffer aggregate;
+    private ByteBuffer pending;
+    private boolean pendingAggregate;
+    private Scheduler.Task idle;
+    private boolean flushing;
+    private boolean again;
+    private boolean force;
+    private boolean complete;
+    private boolean completed;
 
     public AsyncIOSubscriber(AsyncContext context, BiConsumer<AsyncIOSubscriber, ByteBuffer> consumer) throws IOException
     {
+        this(context, consumer, null, 1, 0);
+    }
+
+    /**
+     * @param context the async context of the response
+     * @param consumer the consumer of each buffer, that typically calls {@link #send(ByteBuffer)}
+     * @param pool the pool of aggregate buffers, or null if aggregationSize is 0
+     * @param prefetch the number of buffers to request ahead of the writes
+     * @param aggregationSize the size of the aggregate buffer, or 0 to write each buffer as is
+     * @throws IOException if the response output stream cannot be obtained
+     */
+    public AsyncIOSubscriber(AsyncContext context, BiConsumer<AsyncIOSubscriber, ByteBuffer> consumer, ByteBufferPool pool, int prefetch, int aggregationSize) throws IOException
+    {
+        if (prefetch <= 0)
+            throw new IllegalArgumentException("prefetch " + prefetch);
+        if (aggregationSize > 0 && pool == null)
+            throw new IllegalArgumentException("no pool for aggregation");
         this.context = context;
         this.consumer = consumer;
+        this.pool = pool;
+        this.prefetch = prefetch;
+        this.aggregationSize = aggregationSize;
         HttpServletResponse response = (HttpServletResponse)context.getResponse();
         response.getOutputStream().setWriteListener(this);
     }
 
+    /**
+     * Sets how long a partial aggregate may be held while the output is idle.
+     * @param scheduler the scheduler used to flush the aggregate once the delay expires
+     * @param delay the delay, or 0 to write the aggregate as soon as the output is ready
+     * @param unit the unit of the delay
+     */
+    public void setFlushDelay(Scheduler scheduler, long delay, TimeUnit unit)
+    {
+        this.scheduler = scheduler;
+        this.flushDelay = unit.toMillis(delay);
+    }
+
     @Override
     public void onSubscribe(Subscription subscription)
     {
         this.subscription = subscription;
         // Upon subscribe, always ready to write.
-        subscription.request(1);
+        subscription.request(prefetch);
     }
 
     @Override
@@ -62,47 +130,286 @@ public class AsyncIOSubscriber implements Subscriber<ByteBuffer>, WriteListener
     @Override
     public void onComplete()
     {
-        context.complete();
+        try (Locker.Lock l = lock.lock())
+        {
+            complete = true;
+        }
+        flush();
     }
 
+    /**
+     * Stops writing and ends the response.
+     * <p>A response that is not committed yet is completed with a 500 status, otherwise the
+     * connection is aborted so that the client does not take a truncated response for a
+     * complete one.</p>
+     * @param failure the failure of the publisher
+     */
     @Override
     public void onError(Throwable failure)
     {
-        // TODO
+        fail(failure, false);
+    }
+
+    /**
+     * @param failure the failure of the publisher, or of a write
+     * @param cancel whether to cancel the subscription, which is only allowed if the publisher
+     * has not signalled the failure itself (rule 2.3)
+     */
+    private void fail(Throwable failure, boolean cancel)
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (completed)
+                return;
+            completed = true;
+        }
+        if (LOG.isDebugEnabled())
+            LOG.debug(failure);
+        if (cancel)
+            subscription.cancel();
+
+        HttpServletResponse response = (HttpServletResponse)context.getResponse();
+        if (!response.isCommitted())
+        {
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            context.complete();
+        }
+        else if (!ReactiveSupport.JETTY_SERVER || !JettySupport.abort(context, failure))
+        {
+            context.complete();
+        }
     }
 
     @Override
     public void onWritePossible() throws IOException
     {
-        if (pending)
+        flush();
+    }
+
+    /**
+     * Queues a buffer to be written, writing it if the output is ready.
+     * @param buffer the buffer to write
+     * @return true if no write is pending once the buffer has been handled
+     */
+    protected boolean send(ByteBuffer buffer)
+    {
+        try (Locker.Lock l = lock.lock())
         {
-            pending = false;
-            subscription.request(1);
+            queue.add(buffer);
         }
+        return flush();
     }
 
-    protected boolean send(ByteBuffer buffer)
+    private void flushIdle()
     {
-        try
+        try (Locker.Lock l = lock.lock())
         {
-            ServletOutputStream output = context.getResponse().getOutputStream();
-            output.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
-            if (output.isReady())
+            idle = null;
+            force = true;
+        }
+        flush();
+    }
+
+    /**
+     * Writes queued buffers while the output is ready.
+     * <p>Only one thread at a time flushes. A thread that finds another flushing just
+     * returns after asking it to go around its loop again, so that its queued buffer
+     * or write possible event is not missed.</p>
+     * @return true if no write is pending
+     */
+    private boolean flush()
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (completed)
+                return true;
+            if (flushing)
             {
-                buffer.position(buffer.limit());
-                subscription.request(1);
+                again = true;
                 return true;
             }
-            else
+            flushing = true;
+        }
+
+        int consumed = 0;
+        try
+        {
+            ServletOutputStream output = context.getResponse().getOutputStream();
+            while (true)
             {
-                pending = true;
-                return false;
+                if (consumed > 0)
+                {
+                    int n = consumed;
+                    consumed = 0;
+                    subscription.request(n); // may callback onNext(buffer)
+                }
+
+                // Complete the previous write.
+                if (pending != null)
+                {
+                    if (!output.isReady())
+                    {
+                        try (Locker.Lock l = lock.lock())
+                        {
+                            flushing = again;
+                            again = false;
+                        }
+                        if (flushing)
+                            continue;
+                        return false;
+                    }
+                    pending.position(pending.limit());
+                    if (pendingAggregate)
+                    {
+                        pool.release(pending);
+                    }
+                    else
+                    {
+                        ReactiveSupport.release(subscription, pending);
+                        ++consumed;
+                    }
+                    pending = null;
+                    continue;
+                }
+
+                ByteBuffer item;
+                boolean writeAggregate = false;
+                boolean scheduleIdle = false;
+                boolean retry = false;
+                boolean complete = false;
+                try (Locker.Lock l = lock.lock())
+                {
+                    item = queue.poll();
+                    if (item == null)
+                    {
+                        if (BufferUtil.hasContent(aggregate))
+                        {
+                            writeAggregate = force || this.complete || scheduler == null || flushDelay <= 0;
+                            scheduleIdle = !writeAggregate && idle == null;
+                        }
+                        if (writeAggregate)
+                        {
+                            force = false;
+                        }
+                        else if (again)
+                        {
+                            again = false;
+                            retry = true;
+                        }
+                        else
+                        {
+                            flushing = false;
+                            complete = this.complete;
+                            completed = complete;
+                        }
+                    }
+                }
+
+                if (item == null)
+                {
+                    if (writeAggregate)
+                    {
+                        writeAggregate(output);
+                        continue;
+                    }
+                    if (retry)
+                        continue;
+                    if (scheduleIdle)
+                        scheduleIdle();
+                    if (complete)
+                    {
+                        if (aggregate != null)
+                            pool.release(aggregate);
+                        aggregate = null;
+                        context.complete();
+                        return true;
+                    }
+                    break;
+                }
+
+                if (item.remaining() < aggregationSize)
+                {
+                    if (aggregate == null)
+                        aggregate = pool.acquire(aggregationSize, false);
+                    if (BufferUtil.space(aggregate) >= item.remaining())
+                    {
+                        BufferUtil.append(aggregate, item);
+                        ReactiveSupport.release(subscription, item);
+                        ++consumed;
+                        if (BufferUtil.space(aggregate) == 0)
+                            writeAggregate(output);
+                        continue;
+                    }
+                }
+
+                if (BufferUtil.hasContent(aggregate))
+                {
+                    // Keep the order: write the aggregate before this item.
+                    try (Locker.Lock l = lock.lock())
+                    {
+                        queue.addFirst(item);
+                    }
+                    writeAggregate(output);
+                }
+                else
+                {
+                    write(output, item, false);
+                }
             }
         }
         catch (IOException failure)
         {
-            onError(failure);
+            try (Locker.Lock l = lock.lock())
+            {
+                flushing = false;
+                again = false;
+            }
+            fail(failure, true);
             return false;
         }
+
+        if (consumed > 0)
+            subscription.request(consumed);
+        return true;
+    }
+
+    private void scheduleIdle()
+    {
+        Scheduler.Task task = scheduler.schedule(this::flushIdle, flushDelay, TimeUnit.MILLISECONDS);
+        try (Locker.Lock l = lock.lock())
+        {
+            if (idle == null)
+            {
+                idle = task;
+                task = null;
+            }
+        }
+        if (task != null)
+            task.cancel();
+    }
+
+    private void writeAggregate(ServletOutputStream output) throws IOException
+    {
+        Scheduler.Task task;
+        try (Locker.Lock l = lock.lock())
+        {
+            task = idle;
+            idle = null;
+        }
+        if (task != null)
+            task.cancel();
+        ByteBuffer buffer = aggregate;
+        aggregate = null;
+        write(output, buffer, true);
+    }
+
+    private void write(ServletOutputStream output, ByteBuffer buffer, boolean aggregated) throws IOException
+    {
+        if (LOG.isDebugEnabled())
+            LOG.debug("Write {} aggregated={}", buffer, aggregated);
+        ReactiveSupport.write(output, buffer);
+        // The write may still refer to the buffer until the output is ready again.
+        pending = buffer;
+        pendingAggregate = aggregated;
     }
 }
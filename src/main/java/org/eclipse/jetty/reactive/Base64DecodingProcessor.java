@@ -0,0 +1,193 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+
+/**
+ * A processor that decodes Base64 content.
+ * <p>The decoded content is written directly to buffers leased from a {@link ByteBufferPool},
+ * as many per input buffer as there is demand for, and the subscription is a
+ * {@link PooledSubscription} so subscribers may return them.  The 1 to 3 characters at the
+ * end of a buffer that do not make a whole group are carried to the next buffer.</p>
+ * <p>Both the basic and the URL safe alphabets are accepted.  Line breaks and other white
+ * space are ignored, so MIME content can be decoded, and the padding is optional.  Invalid
+ * content fails the subscriber with an {@link IllegalStateException}.</p>
+ */
+public class Base64DecodingProcessor extends IteratingProcessor<ByteBuffer, ByteBuffer>
+{
+    private static final int WHITESPACE = -2;
+    private static final int PAD = -3;
+    private static final int[] DECODE = new int[256];
+
+    static
+    {
+        Arrays.fill(DECODE, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); ++i)
+            DECODE[alphabet.charAt(i)] = i;
+        DECODE['-'] = 62;
+        DECODE['_'] = 63;
+        DECODE[' '] = WHITESPACE;
+        DECODE['\t'] = WHITESPACE;
+        DECODE['\r'] = WHITESPACE;
+        DECODE['\n'] = WHITESPACE;
+        DECODE['='] = PAD;
+    }
+
+    private final ByteBufferPool pool;
+    private final int bufferSize;
+    private int carry;
+    private int carried;
+    private boolean padded;
+    private boolean completed;
+
+    /**
+     * @param pool the pool to lease the decoded buffers from
+     * @param bufferSize the size of the decoded buffers, at least 3
+     */
+    public Base64DecodingProcessor(ByteBufferPool pool, int bufferSize)
+    {
+        if (bufferSize < 3)
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+        this.pool = pool;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    protected ByteBuffer process(ByteBuffer item)
+    {
+        if (!item.hasRemaining())
+            return null;
+
+        ByteBuffer buffer = pool.acquire(bufferSize, false);
+        byte[] out = buffer.array();
+        int offset = buffer.arrayOffset();
+        int o = offset;
+        int end = offset + buffer.capacity() - 2;
+        int position = item.position();
+        int limit = item.limit();
+
+        try
+        {
+            while (position < limit && o < end)
+            {
+                int c = item.get(position++) & 0xFF;
+                int sextet = DECODE[c];
+                if (sextet >= 0)
+                {
+                    if (padded)
+                        throw new IllegalStateException("Base64 content after padding");
+                    carry = (carry << 6) | sextet;
+                    if (++carried == 4)
+                    {
+                        out[o++] = (byte)(carry >>> 16);
+                        out[o++] = (byte)(carry >>> 8);
+                        out[o++] = (byte)carry;
+                        carry = 0;
+                        carried = 0;
+                    }
+                }
+                else if (sextet == PAD)
+                {
+                    if (!padded)
+                    {
+                        padded = true;
+                        o = flush(out, o);
+                    }
+                }
+                else if (sextet != WHITESPACE)
+                {
+                    throw new IllegalStateException("Invalid Base64 character " + c);
+                }
+            }
+        }
+        catch (Throwable x)
+        {
+            pool.release(buffer);
+            throw x;
+        }
+        item.position(position);
+
+        if (o == offset)
+        {
+            pool.release(buffer);
+            return null;
+        }
+        buffer.position(0);
+        buffer.limit(o - offset);
+        return buffer;
+    }
+
+    /**
+     * Writes the bytes of a partial last group.
+     */
+    private int flush(byte[] out, int o)
+    {
+        switch (carried)
+        {
+            case 0:
+                break;
+            case 2:
+                out[o++] = (byte)(carry >>> 4);
+                break;
+            case 3:
+                out[o++] = (byte)(carry >>> 10);
+                out[o++] = (byte)(carry >>> 2);
+                break;
+            default:
+                throw new IllegalStateException("Truncated Base64 content");
+        }
+        carry = 0;
+        carried = 0;
+        return o;
+    }
+
+    @Override
+    protected boolean isConsumed(ByteBuffer item)
+    {
+        return !item.hasRemaining();
+    }
+
+    @Override
+    protected ByteBuffer complete()
+    {
+        if (completed || carried == 0)
+            return null;
+        completed = true;
+        if (carried == 1)
+            throw new IllegalStateException("Truncated Base64 content");
+
+        // Unpadded content
+        ByteBuffer buffer = pool.acquire(3, false);
+        int length = flush(buffer.array(), buffer.arrayOffset()) - buffer.arrayOffset();
+        buffer.position(0);
+        buffer.limit(length);
+        return buffer;
+    }
+
+    @Override
+    protected void releaseResult(ByteBuffer result)
+    {
+        pool.release(result);
+    }
+}
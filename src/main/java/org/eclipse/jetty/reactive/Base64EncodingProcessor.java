@@ -0,0 +1,137 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+
+/**
+ * A processor that encodes content to Base64.
+ * <p>The encoded content is written directly to buffers leased from a {@link ByteBufferPool},
+ * as many per input buffer as there is demand for, and the subscription is a
+ * {@link PooledSubscription} so subscribers may return them.  The 1 or 2 bytes at the end of
+ * a buffer that do not make a whole group are carried to the next buffer, so the output is
+ * the same however the content is split.</p>
+ */
+public class Base64EncodingProcessor extends IteratingProcessor<ByteBuffer, ByteBuffer>
+{
+    private static final byte[] BASIC = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+
+    private final ByteBufferPool pool;
+    private final int bufferSize;
+    private final byte[] alphabet;
+    private int carry;
+    private int carried;
+    private boolean completed;
+
+    public Base64EncodingProcessor(ByteBufferPool pool, int bufferSize)
+    {
+        this(pool, bufferSize, false);
+    }
+
+    /**
+     * @param pool the pool to lease the encoded buffers from
+     * @param bufferSize the size of the encoded buffers, at least 4
+     * @param url true for the URL and file name safe alphabet
+     */
+    public Base64EncodingProcessor(ByteBufferPool pool, int bufferSize, boolean url)
+    {
+        if (bufferSize < 4)
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+        this.pool = pool;
+        this.bufferSize = bufferSize;
+        this.alphabet = url ? URL : BASIC;
+    }
+
+    @Override
+    protected ByteBuffer process(ByteBuffer item)
+    {
+        if (!item.hasRemaining())
+            return null;
+
+        ByteBuffer buffer = pool.acquire(bufferSize, false);
+        byte[] out = buffer.array();
+        int offset = buffer.arrayOffset();
+        int o = offset;
+        int end = offset + buffer.capacity() - 3;
+        int position = item.position();
+        int limit = item.limit();
+
+        while (position < limit && o < end)
+        {
+            carry = (carry << 8) | (item.get(position++) & 0xFF);
+            if (++carried == 3)
+            {
+                out[o++] = alphabet[(carry >>> 18) & 0x3F];
+                out[o++] = alphabet[(carry >>> 12) & 0x3F];
+                out[o++] = alphabet[(carry >>> 6) & 0x3F];
+                out[o++] = alphabet[carry & 0x3F];
+                carry = 0;
+                carried = 0;
+            }
+        }
+        item.position(position);
+
+        if (o == offset)
+        {
+            // Only carried bytes
+            pool.release(buffer);
+            return null;
+        }
+        buffer.position(0);
+        buffer.limit(o - offset);
+        return buffer;
+    }
+
+    @Override
+    protected boolean isConsumed(ByteBuffer item)
+    {
+        return !item.hasRemaining();
+    }
+
+    @Override
+    protected ByteBuffer complete()
+    {
+        if (completed || carried == 0)
+            return null;
+        completed = true;
+
+        // Pad the last group
+        ByteBuffer buffer = pool.acquire(4, false);
+        byte[] out = buffer.array();
+        int o = buffer.arrayOffset();
+        int bits = carry << (8 * (3 - carried));
+        out[o] = alphabet[(bits >>> 18) & 0x3F];
+        out[o + 1] = alphabet[(bits >>> 12) & 0x3F];
+        out[o + 2] = carried == 2 ? alphabet[(bits >>> 6) & 0x3F] : (byte)'=';
+        out[o + 3] = '=';
+        buffer.position(0);
+        buffer.limit(4);
+        return buffer;
+    }
+
+    @Override
+    protected void releaseResult(ByteBuffer result)
+    {
+        pool.release(result);
+    }
+}
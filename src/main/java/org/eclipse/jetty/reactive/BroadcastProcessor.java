@@ -0,0 +1,415 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.eclipse.jetty.util.thread.Locker;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A processor that publishes each buffer to a fixed number of subscribers.
+ * <p>Content is only requested once all the subscribers have subscribed, so that none misses
+ * any.  Each subscriber is passed its own {@link ByteBuffer#duplicate() duplicate} of a buffer,
+ * so the content is shared without copying, and the subscriptions are
+ * {@link PooledSubscription}s: a buffer is released to the publisher once every subscriber has
+ * released its duplicate or cancelled.  Only the most recent duplicates are tracked, so a
+ * subscriber that does not release them does not cause the buffers to be retained.</p>
+ * <p>By default content is requested at the pace of the slowest subscriber.  With a
+ * {@link #setMaxLag(int) maximum lag}, content is requested at the pace of the fastest
+ * subscriber, and a subscriber may fall behind by that many buffers, after which either it is
+ * {@link #setDropLagging(boolean) dropped} or the publisher is cancelled and all the
+ * subscribers are failed, with an {@link IllegalStateException}.</p>
+ */
+public class BroadcastProcessor implements Processor<ByteBuffer, ByteBuffer>
+{
+    private final Locker lock = new Locker();
+    private final List<Branch> branches = new ArrayList<>();
+    private final int subscribers;
+    private int maxLag = -1;
+    private boolean dropLagging;
+    private Subscription upstream;
+    private boolean upstreamCancelled;
+    private long requested;
+    private boolean complete;
+    private Throwable failure;
+    private boolean draining;
+    private boolean again;
+
+    /**
+     * @param subscribers the number of subscribers to publish to
+     */
+    public BroadcastProcessor(int subscribers)
+    {
+        if (subscribers <= 0)
+            throw new IllegalArgumentException("Invalid subscribers " + subscribers);
+        this.subscribers = subscribers;
+    }
+
+    public int getMaxLag()
+    {
+        return maxLag;
+    }
+
+    /**
+     * @param maxLag The number of buffers, at least 1, a subscriber may fall behind the fastest
+     * subscriber, or -1 to request content at the pace of the slowest subscriber.  Must be set before subscribing.
+     */
+    public void setMaxLag(int maxLag)
+    {
+        if (maxLag == 0 || maxLag < -1)
+            throw new IllegalArgumentException("Invalid max lag " + maxLag);
+        this.maxLag = maxLag;
+    }
+
+    public boolean isDropLagging()
+    {
+        return dropLagging;
+    }
+
+    /**
+     * @param dropLagging Whether a subscriber that exceeds the maximum lag is dropped, rather than
+     * the stream being failed.  Must be set before subscribing.
+     */
+    public void setDropLagging(boolean dropLagging)
+    {
+        this.dropLagging = dropLagging;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription)
+    {
+        if (subscription == null)
+            throw new NullPointerException();
+        boolean duplicate;
+        try (Locker.Lock l = lock.lock())
+        {
+            duplicate = upstream != null;
+            if (!duplicate)
+                upstream = subscription;
+        }
+        if (duplicate)
+            subscription.cancel();
+        else
+            drain();
+    }
+
+    @Override
+    public void onNext(ByteBuffer buffer)
+    {
+        if (buffer == null)
+            throw new NullPointerException();
+        List<Lease> released = new ArrayList<>();
+        boolean cancel = false;
+        try (Locker.Lock l = lock.lock())
+        {
+            --requested;
+            Lease lease = new Lease(buffer, leased -> ReactiveSupport.release(upstream, leased));
+            for (Branch branch : branches)
+            {
+                if (!branch.isActive())
+                    continue;
+                lease.retain();
+                branch.queue.add(lease);
+                if (maxLag >= 0 && branch.queue.size() > maxLag)
+                {
+                    IllegalStateException x = new IllegalStateException("Subscriber lagging by more than " + maxLag);
+                    if (dropLagging)
+                    {
+                        branch.error = x;
+                        branch.clear(released);
+                    }
+                    else
+                    {
+                        for (Branch b : branches)
+                        {
+                            if (b.isActive())
+                                b.error = x;
+                            b.clear(released);
+                        }
+                        cancel = !upstreamCancelled;
+                        upstreamCancelled = true;
+                        break;
+                    }
+                }
+            }
+            // A buffer that no subscriber takes is released now, otherwise once its duplicates are
+            released.add(lease);
+        }
+        if (cancel)
+            upstream.cancel();
+        release(released);
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable failure)
+    {
+        if (failure == null)
+            throw new NullPointerException();
+        try (Locker.Lock l = lock.lock())
+        {
+            this.failure = failure;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete()
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            complete = true;
+        }
+        drain();
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber)
+    {
+        if (subscriber == null)
+            throw new NullPointerException();
+        Branch branch = new Branch(subscriber);
+        try (Locker.Lock l = lock.lock())
+        {
+            if (branches.size() == subscribers)
+                throw new IllegalStateException("already " + subscribers + " subscribers");
+            branches.add(branch);
+        }
+        subscriber.onSubscribe(branch);
+        try (Locker.Lock l = lock.lock())
+        {
+            branch.connected = true;
+        }
+        drain();
+    }
+
+    /**
+     * Signals the subscribers and requests content.
+     * <p>Only one thread at a time drains.  A thread that finds another draining just asks it
+     * to go around its loop again, so that signals from within onNext() do not recurse.</p>
+     */
+    private void drain()
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (draining)
+            {
+                again = true;
+                return;
+            }
+            draining = true;
+        }
+
+        List<Lease> released = new ArrayList<>();
+        while (true)
+        {
+            Branch branch = null;
+            ByteBuffer item = null;
+            Throwable error = null;
+            long request = 0;
+            boolean cancel = false;
+            boolean idle = false;
+            try (Locker.Lock l = lock.lock())
+            {
+                for (Branch b : branches)
+                {
+                    if (!b.connected || b.terminated)
+                        continue;
+                    if (b.cancelled)
+                    {
+                        b.terminated = true;
+                        b.clear(released);
+                        continue;
+                    }
+                    if (b.error != null)
+                    {
+                        b.terminated = true;
+                        branch = b;
+                        error = b.error;
+                        break;
+                    }
+                    if (!b.queue.isEmpty())
+                    {
+                        if (b.demand > 0)
+                        {
+                            Lease lease = b.queue.poll();
+                            if (b.demand != Long.MAX_VALUE)
+                                --b.demand;
+                            item = lease.getBuffer().duplicate();
+                            b.delivered.add(item, lease);
+                            branch = b;
+                            break;
+                        }
+                    }
+                    else if (complete || failure != null)
+                    {
+                        b.terminated = true;
+                        branch = b;
+                        error = failure;
+                        break;
+                    }
+                }
+
+                if (branch == null)
+                {
+                    if (upstream != null && !upstreamCancelled && !complete && failure == null && branches.size() == subscribers)
+                    {
+                        long want = -1;
+                        boolean connected = true;
+                        for (Branch b : branches)
+                        {
+                            connected &= b.connected;
+                            if (!b.isActive())
+                                continue;
+                            // With a lag, a burst for the fastest subscriber must not exceed it
+                            long available = (maxLag < 0 ? b.demand : Math.min(b.demand, Math.max(1, maxLag))) - b.queue.size();
+                            want = want < 0 ? available : maxLag < 0 ? Math.min(want, available) : Math.max(want, available);
+                        }
+                        if (connected)
+                        {
+                            if (want < 0)
+                            {
+                                // All the subscribers have cancelled or been dropped
+                                cancel = true;
+                                upstreamCancelled = true;
+                            }
+                            else if (want > requested)
+                            {
+                                request = want - requested;
+                                requested = want;
+                            }
+                        }
+                    }
+
+                    if (!cancel && request == 0)
+                    {
+                        if (again)
+                            again = false;
+                        else
+                            idle = true;
+                        draining = !idle;
+                    }
+                }
+            }
+
+            release(released);
+            released.clear();
+
+            if (branch != null)
+            {
+                if (item != null)
+                    branch.subscriber.onNext(item); // may callback request(n)
+                else if (error != null)
+                    branch.subscriber.onError(error);
+                else
+                    branch.subscriber.onComplete();
+            }
+            else if (cancel)
+            {
+                upstream.cancel();
+            }
+            else if (request > 0)
+            {
+                upstream.request(request); // may callback onNext(buffer)
+            }
+            else if (idle)
+            {
+                return;
+            }
+        }
+    }
+
+    private void release(List<Lease> leases)
+    {
+        for (Lease lease : leases)
+            lease.release();
+    }
+
+    private class Branch implements PooledSubscription<ByteBuffer>
+    {
+        private final Deque<Lease> queue = new ArrayDeque<>();
+        private final Lease.Slices delivered = new Lease.Slices();
+        private final Subscriber<? super ByteBuffer> subscriber;
+        private long demand;
+        private boolean connected;
+        private boolean cancelled;
+        private boolean terminated;
+        private Throwable error;
+
+        private Branch(Subscriber<? super ByteBuffer> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        private boolean isActive()
+        {
+            return !cancelled && !terminated && error == null;
+        }
+
+        /**
+         * Drops the queued buffers, adding their leases to the leases to release.
+         */
+        private void clear(List<Lease> released)
+        {
+            released.addAll(queue);
+            queue.clear();
+        }
+
+        @Override
+        public void request(long n)
+        {
+            try (Locker.Lock l = lock.lock())
+            {
+                if (n <= 0)
+                {
+                    if (isActive())
+                        error = new IllegalArgumentException("Rule 3.9: request " + n);
+                }
+                else
+                {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel()
+        {
+            try (Locker.Lock l = lock.lock())
+            {
+                cancelled = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void release(ByteBuffer buffer)
+        {
+            delivered.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A processor that decodes content to characters, by default from UTF-8.
+ * <p>Each item is decoded in bulk by a single {@link CharsetDecoder}, as many {@link CharBuffer}s
+ * per item as there is demand for.  The bytes of a character split at the end of an item are
+ * carried to the next item.  Malformed input is replaced, as {@link String#String(byte[], Charset)}
+ * does.</p>
+ * <p>The subscription is a {@link PooledSubscription}, so the character buffers that subscribers
+ * release are reused for the next results.</p>
+ */
+public class CharsetDecodingProcessor extends IteratingProcessor<ByteBuffer, CharBuffer>
+{
+    private final BlockingQueue<CharBuffer> buffers = new ArrayBlockingQueue<>(8);
+    private final CharsetDecoder decoder;
+    private final int bufferSize;
+    // The bytes of a character split across items
+    private final ByteBuffer carry = ByteBuffer.allocate(16);
+    private boolean completed;
+
+    public CharsetDecodingProcessor(int bufferSize)
+    {
+        this(StandardCharsets.UTF_8, bufferSize);
+    }
+
+    /**
+     * @param charset the charset of the content
+     * @param bufferSize the size in characters of the decoded buffers, at least 2
+     */
+    public CharsetDecodingProcessor(Charset charset, int bufferSize)
+    {
+        if (bufferSize < 2)
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    protected CharBuffer process(ByteBuffer item)
+    {
+        if (!item.hasRemaining())
+            return null;
+
+        CharBuffer buffer = acquire();
+
+        // Complete a character split at the end of the previous item, a byte at a time
+        while (carry.position() > 0 && item.hasRemaining())
+        {
+            carry.put(item.get());
+            carry.flip();
+            decode(carry, buffer, false);
+            carry.compact();
+        }
+
+        if (item.hasRemaining())
+        {
+            // The decoder underflows leaving the bytes of a split character
+            if (decode(item, buffer, false).isUnderflow() && item.hasRemaining())
+                carry.put(item);
+        }
+
+        return publish(buffer);
+    }
+
+    @Override
+    protected boolean isConsumed(ByteBuffer item)
+    {
+        return !item.hasRemaining();
+    }
+
+    @Override
+    protected CharBuffer complete()
+    {
+        if (completed)
+            return null;
+        completed = true;
+
+        // Replace the bytes of a truncated character
+        CharBuffer buffer = acquire();
+        carry.flip();
+        decode(carry, buffer, true);
+        CoderResult result = decoder.flush(buffer);
+        if (result.isError())
+            throw new IllegalStateException(result.toString());
+        return publish(buffer);
+    }
+
+    @Override
+    protected void releaseResult(CharBuffer result)
+    {
+        if (result.capacity() == bufferSize)
+            buffers.offer(result);
+    }
+
+    private CoderResult decode(ByteBuffer in, CharBuffer out, boolean endOfInput)
+    {
+        CoderResult result = decoder.decode(in, out, endOfInput);
+        if (result.isError())
+            throw new IllegalStateException(result.toString());
+        return result;
+    }
+
+    private CharBuffer acquire()
+    {
+        CharBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return CharBuffer.allocate(bufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    private CharBuffer publish(CharBuffer buffer)
+    {
+        buffer.flip();
+        if (buffer.hasRemaining())
+            return buffer;
+        buffers.offer(buffer);
+        return null;
+    }
+}
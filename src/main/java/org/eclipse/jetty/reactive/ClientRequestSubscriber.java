@@ -0,0 +1,100 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.DeferredContentProvider;
+import org.eclipse.jetty.util.Callback;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A {@link Subscriber} that sends the buffers it receives as the content of an {@link org.eclipse.jetty.client.HttpClient}
+ * request.
+ * <p>Each buffer is offered to the request content and is released, and the next buffer requested,
+ * only once the client has written it, so the content is never buffered beyond the prefetch.  At
+ * completion the request content is closed, and a failure of the publisher aborts the request.</p>
+ * <p>The subscriber must be created before the request is sent, since it sets the request content.</p>
+ */
+public class ClientRequestSubscriber implements Subscriber<ByteBuffer>
+{
+    private final DeferredContentProvider content = new DeferredContentProvider();
+    private final Request request;
+    private final int prefetch;
+    private volatile Subscription subscription;
+
+    public ClientRequestSubscriber(Request request)
+    {
+        this(request, 1);
+    }
+
+    /**
+     * @param request the client request to send the content of
+     * @param prefetch the number of buffers to request ahead of the writes
+     */
+    public ClientRequestSubscriber(Request request, int prefetch)
+    {
+        if (prefetch <= 0)
+            throw new IllegalArgumentException("prefetch " + prefetch);
+        this.request = request;
+        this.prefetch = prefetch;
+        request.content(content);
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription)
+    {
+        this.subscription = subscription;
+        subscription.request(prefetch);
+    }
+
+    @Override
+    public void onNext(ByteBuffer buffer)
+    {
+        content.offer(buffer, new Callback()
+        {
+            @Override
+            public void succeeded()
+            {
+                ReactiveSupport.release(subscription, buffer);
+                subscription.request(1);
+            }
+
+            @Override
+            public void failed(Throwable x)
+            {
+                subscription.cancel();
+            }
+        });
+    }
+
+    @Override
+    public void onError(Throwable failure)
+    {
+        request.abort(failure);
+    }
+
+    @Override
+    public void onComplete()
+    {
+        content.close();
+    }
+}
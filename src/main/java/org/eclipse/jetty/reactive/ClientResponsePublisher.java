@@ -0,0 +1,242 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.thread.Locker;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+/**
+ * A {@link Publisher} of the response content of an {@link org.eclipse.jetty.client.HttpClient}
+ * request.
+ * <p>The publisher listens to the response content asynchronously: a buffer received from the
+ * client is published once there is demand for it, and the client reads no further content until
+ * the subscriber {@link PooledSubscription#release(Object) releases} the buffer, as
+ * {@link AsyncIOSubscriber} does once the buffer is written.  The content is therefore never
+ * buffered, but subscribers must release every buffer.  Cancelling the subscription aborts the
+ * request.</p>
+ * <p>The publisher is the listener the request is sent with, which registers it for both the
+ * response content and the completion:</p>
+ * <pre>
+ * ClientResponsePublisher publisher = new ClientResponsePublisher(request);
+ * request.send(publisher);
+ * </pre>
+ */
+public class ClientResponsePublisher implements Publisher<ByteBuffer>, PooledSubscription<ByteBuffer>, Response.AsyncContentListener, Response.CompleteListener
+{
+    private final Locker lock = new Locker();
+    private final Request request;
+    private Subscriber<? super ByteBuffer> subscriber;
+    private long demand;
+    private ByteBuffer pending;
+    private Callback pendingCallback;
+    private ByteBuffer published;
+    private Callback publishedCallback;
+    private boolean complete;
+    private Throwable failure;
+    private boolean cancelled;
+    private boolean terminated;
+    private boolean publishing;
+    private boolean again;
+
+    /**
+     * @param request the request to publish the response content of, that is aborted if the subscription is cancelled
+     */
+    public ClientResponsePublisher(Request request)
+    {
+        this.request = request;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber)
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (this.subscriber != null)
+                throw new IllegalStateException("already subscribed");
+            this.subscriber = subscriber;
+        }
+        subscriber.onSubscribe(this);
+        publish();
+    }
+
+    @Override
+    public void onContent(Response response, ByteBuffer content, Callback callback)
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            pending = content;
+            pendingCallback = callback;
+        }
+        publish();
+    }
+
+    @Override
+    public void onComplete(Result result)
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (result.isFailed())
+            {
+                if (failure == null)
+                    failure = result.getFailure();
+            }
+            else
+            {
+                complete = true;
+            }
+        }
+        publish();
+    }
+
+    @Override
+    public void request(long n)
+    {
+        if (n <= 0)
+        {
+            IllegalArgumentException x = new IllegalArgumentException("Rule 3.9: request " + n);
+            try (Locker.Lock l = lock.lock())
+            {
+                if (failure == null)
+                    failure = x;
+            }
+            request.abort(x);
+        }
+        else
+        {
+            try (Locker.Lock l = lock.lock())
+            {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+        }
+        publish();
+    }
+
+    @Override
+    public void cancel()
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (cancelled || terminated)
+                return;
+            cancelled = true;
+        }
+        request.abort(new CancellationException());
+    }
+
+    @Override
+    public void release(ByteBuffer buffer)
+    {
+        Callback callback = null;
+        try (Locker.Lock l = lock.lock())
+        {
+            if (buffer == published)
+            {
+                callback = publishedCallback;
+                published = null;
+                publishedCallback = null;
+            }
+        }
+        // The client may call back onContent() with the next buffer
+        if (callback != null)
+            callback.succeeded();
+    }
+
+    /**
+     * Signals the subscriber.
+     * <p>Only one thread at a time signals.  A thread that finds another signalling just asks
+     * it to go around its loop again, so that signals from within onNext() do not recurse.</p>
+     */
+    private void publish()
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (publishing)
+            {
+                again = true;
+                return;
+            }
+            publishing = true;
+        }
+
+        while (true)
+        {
+            Subscriber<? super ByteBuffer> subscriber;
+            ByteBuffer item = null;
+            Throwable failure = null;
+            boolean complete = false;
+            try (Locker.Lock l = lock.lock())
+            {
+                subscriber = this.subscriber;
+                if (subscriber != null && !terminated)
+                {
+                    if (cancelled)
+                    {
+                        terminated = true;
+                    }
+                    else if (pending != null && demand > 0)
+                    {
+                        item = pending;
+                        published = pending;
+                        publishedCallback = pendingCallback;
+                        pending = null;
+                        pendingCallback = null;
+                        if (demand != Long.MAX_VALUE)
+                            --demand;
+                    }
+                    else if (this.failure != null)
+                    {
+                        terminated = true;
+                        failure = this.failure;
+                    }
+                    else if (this.complete && pending == null)
+                    {
+                        terminated = true;
+                        complete = true;
+                    }
+                }
+
+                if (item == null && failure == null && !complete)
+                {
+                    if (again)
+                    {
+                        again = false;
+                        continue;
+                    }
+                    publishing = false;
+                    return;
+                }
+            }
+
+            if (item != null)
+                subscriber.onNext(item);
+            else if (failure != null)
+                subscriber.onError(failure);
+            else
+                subscriber.onComplete();
+        }
+    }
+}
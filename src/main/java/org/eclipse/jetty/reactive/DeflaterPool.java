@@ -0,0 +1,57 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of raw (no zlib wrapper) {@link Deflater}s.
+ * <p>A deflater holds native memory that is only freed when it is ended, so reusing them
+ * is much cheaper than creating one per response.  Deflaters released when the pool is
+ * full are ended.</p>
+ */
+class DeflaterPool
+{
+    static final DeflaterPool INSTANCE = new DeflaterPool(Integer.getInteger("org.eclipse.jetty.reactive.deflaterPoolSize", 2 * Runtime.getRuntime().availableProcessors()));
+
+    private final BlockingQueue<Deflater> deflaters;
+
+    DeflaterPool(int capacity)
+    {
+        deflaters = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    Deflater acquire(int level)
+    {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            return new Deflater(level, true);
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    void release(Deflater deflater)
+    {
+        deflater.reset();
+        if (!deflaters.offer(deflater))
+            deflater.end();
+    }
+}
@@ -0,0 +1,249 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+
+/**
+ * A processor that compresses content to the {@code gzip} format.
+ * <p>The compressed content is written to buffers leased from a {@link ByteBufferPool}, and the
+ * subscription is a {@link PooledSubscription}, so subscribers such as {@link AsyncIOSubscriber}
+ * return them once written.  The {@link Deflater}s are reused from a pool.</p>
+ * <p>By default the deflater is {@link Deflater#SYNC_FLUSH sync flushed} once each item has been
+ * compressed, so that everything published so far can be inflated by the client, as streamed
+ * responses need.  Without {@link #setSyncFlush(boolean) sync flush}, output is only published as
+ * buffers fill, which compresses better.</p>
+ * <p>The response must be given a {@code Content-Encoding: gzip} header by the application.</p>
+ */
+public class DeflatingProcessor extends IteratingProcessor<ByteBuffer, ByteBuffer>
+{
+    private static final byte[] HEADER = {(byte)0x1F, (byte)0x8B, 8, 0, 0, 0, 0, 0, 0, 0};
+
+    private final ByteBufferPool pool;
+    private final int bufferSize;
+    private final int level;
+    private final CRC32 crc = new CRC32();
+    private boolean syncFlush = true;
+    private Deflater deflater;
+    private boolean header;
+    private boolean trailer;
+    private ByteBuffer input;
+    private int inputEnd;
+    private byte[] copy;
+    private boolean flushed = true;
+    private long size;
+
+    public DeflatingProcessor(ByteBufferPool pool, int bufferSize)
+    {
+        this(pool, bufferSize, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param pool the pool to lease the compressed buffers from
+     * @param bufferSize the size of the compressed buffers, at least 32
+     * @param level the compression level, from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public DeflatingProcessor(ByteBufferPool pool, int bufferSize, int level)
+    {
+        if (bufferSize < 32)
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+        this.pool = pool;
+        this.bufferSize = bufferSize;
+        this.level = level;
+    }
+
+    public boolean isSyncFlush()
+    {
+        return syncFlush;
+    }
+
+    /**
+     * @param syncFlush Whether the compressed content of each item is published before the
+     * next item is compressed.  Must be set before subscribing.
+     */
+    public void setSyncFlush(boolean syncFlush)
+    {
+        this.syncFlush = syncFlush;
+    }
+
+    @Override
+    protected ByteBuffer process(ByteBuffer item)
+    {
+        Deflater deflater = getDeflater();
+        while (true)
+        {
+            if (deflater.needsInput())
+            {
+                if (input == item)
+                {
+                    // The deflater has consumed all the input from the item
+                    item.position(inputEnd);
+                    input = null;
+                }
+
+                if (item.hasRemaining())
+                {
+                    setInput(item);
+                }
+                else
+                {
+                    if (flushed || !syncFlush)
+                        return null;
+                    ByteBuffer buffer = deflate(Deflater.SYNC_FLUSH);
+                    // The flush is complete once the deflater has space left over
+                    flushed = buffer == null || buffer.hasRemaining() && buffer.limit() < buffer.capacity();
+                    return buffer;
+                }
+            }
+
+            ByteBuffer buffer = deflate(Deflater.NO_FLUSH);
+            if (buffer != null)
+                return buffer;
+        }
+    }
+
+    @Override
+    protected ByteBuffer complete()
+    {
+        if (trailer)
+            return null;
+
+        Deflater deflater = getDeflater();
+        deflater.finish();
+        ByteBuffer buffer = deflate(Deflater.NO_FLUSH);
+        if (!deflater.finished())
+            return buffer;
+
+        if (buffer == null)
+            buffer = acquire();
+        else if (buffer.capacity() - buffer.limit() < 8)
+            return buffer;
+
+        // Append the trailer to the last buffer
+        trailer = true;
+        int position = buffer.limit();
+        buffer.limit(position + 8);
+        buffer.position(position);
+        putIntLE(buffer, (int)crc.getValue());
+        putIntLE(buffer, (int)size);
+        buffer.position(0);
+        DeflaterPool.INSTANCE.release(deflater);
+        this.deflater = null;
+        return buffer;
+    }
+
+    @Override
+    protected void terminate()
+    {
+        // Return the deflater of a cancelled or failed response, which has no trailer
+        if (deflater != null)
+        {
+            DeflaterPool.INSTANCE.release(deflater);
+            deflater = null;
+        }
+    }
+
+    @Override
+    protected boolean isConsumed(ByteBuffer item)
+    {
+        return !item.hasRemaining() && input != item && (flushed || !syncFlush);
+    }
+
+    @Override
+    protected void releaseResult(ByteBuffer result)
+    {
+        pool.release(result);
+    }
+
+    private Deflater getDeflater()
+    {
+        if (deflater == null)
+            deflater = DeflaterPool.INSTANCE.acquire(level);
+        return deflater;
+    }
+
+    private void setInput(ByteBuffer item)
+    {
+        int length = item.remaining();
+        if (item.hasArray())
+        {
+            // The deflater refers to the array, so the item is only consumed once it needs input
+            input = item;
+            inputEnd = item.limit();
+            deflater.setInput(item.array(), item.arrayOffset() + item.position(), length);
+            crc.update(item.array(), item.arrayOffset() + item.position(), length);
+        }
+        else
+        {
+            // The deflater only reads arrays, so copy a chunk of a direct buffer
+            if (copy == null)
+                copy = new byte[bufferSize];
+            length = Math.min(length, copy.length);
+            item.get(copy, 0, length);
+            deflater.setInput(copy, 0, length);
+            crc.update(copy, 0, length);
+        }
+        size += length;
+        flushed = false;
+    }
+
+    /**
+     * @return a buffer of compressed content, or null if the deflater produced none
+     */
+    private ByteBuffer deflate(int flush)
+    {
+        ByteBuffer buffer = acquire();
+        int position = buffer.limit();
+        int length = deflater.deflate(buffer.array(), buffer.arrayOffset() + position, buffer.capacity() - position, flush);
+        if (length == 0 && position == 0)
+        {
+            pool.release(buffer);
+            return null;
+        }
+        buffer.limit(position + length);
+        return buffer;
+    }
+
+    private ByteBuffer acquire()
+    {
+        ByteBuffer buffer = pool.acquire(bufferSize, false);
+        buffer.position(0);
+        buffer.limit(0);
+        if (!header)
+        {
+            header = true;
+            buffer.limit(HEADER.length);
+            buffer.put(HEADER);
+            buffer.position(0);
+        }
+        return buffer;
+    }
+
+    private static void putIntLE(ByteBuffer buffer, int value)
+    {
+        buffer.put((byte)value);
+        buffer.put((byte)(value >> 8));
+        buffer.put((byte)(value >> 16));
+        buffer.put((byte)(value >> 24));
+    }
+}
@@ -0,0 +1,94 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A processor that frames content into records ended by a delimiter, by default a newline as
+ * in newline delimited JSON.
+ * <p>The delimiter is not part of the records, and an empty line is published as an empty record.
+ * Content after the last delimiter is published as a last record.  The delimiter is searched
+ * for 8 bytes at a time.</p>
+ */
+public class DelimitedRecordProcessor extends RecordProcessor
+{
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOWS = 0x7F7F7F7F7F7F7F7FL;
+
+    private final byte delimiter;
+    private final long pattern;
+
+    public DelimitedRecordProcessor()
+    {
+        this((byte)'\n');
+    }
+
+    /**
+     * @param delimiter the byte that ends each record
+     */
+    public DelimitedRecordProcessor(byte delimiter)
+    {
+        this.delimiter = delimiter;
+        this.pattern = ONES * (delimiter & 0xFF);
+    }
+
+    @Override
+    protected int frame(ByteBuffer item, int framed)
+    {
+        return indexOf(item, item.position(), item.limit());
+    }
+
+    @Override
+    protected int trailer()
+    {
+        return 1;
+    }
+
+    @Override
+    protected ByteBuffer last(ByteBuffer record)
+    {
+        return record;
+    }
+
+    /**
+     * @return the index of the delimiter, or -1 if there is none
+     */
+    private int indexOf(ByteBuffer item, int position, int limit)
+    {
+        boolean bigEndian = item.order() == ByteOrder.BIG_ENDIAN;
+        while (position + 8 <= limit)
+        {
+            // The high bit of each byte equal to the delimiter is set, without false positives
+            long word = item.getLong(position) ^ pattern;
+            long found = ~(((word & LOWS) + LOWS) | word | LOWS);
+            if (found != 0)
+                return position + ((bigEndian ? Long.numberOfLeadingZeros(found) : Long.numberOfTrailingZeros(found)) >>> 3);
+            position += 8;
+        }
+        while (position < limit)
+        {
+            if (item.get(position) == delimiter)
+                return position;
+            ++position;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,176 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.zip.Checksum;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.util.QuotedStringTokenizer;
+
+/**
+ * A processor that computes a digest or checksum of the content that passes through it.
+ * <p>Each buffer is digested and then published as is, so the content is hashed in the same
+ * pass that writes or stores it, and the buffers are released to the publisher when the
+ * subscriber releases them.  The digest is available from {@link #getDigest()} once the content
+ * is complete.  A {@link Checksum}, such as a {@link java.util.zip.CRC32}, gives a digest of the 4
+ * bytes of its value, most significant first.</p>
+ * <p>If an {@link #setExpectedDigest(byte[]) expected digest} is set, for example from the
+ * request headers with {@link #getExpectedDigest(HttpServletRequest, String)}, a different digest
+ * fails the subscriber with an {@link IllegalStateException} instead of completing it, so that it
+ * can discard the content.</p>
+ */
+public class DigestProcessor extends IteratingProcessor<ByteBuffer, ByteBuffer>
+{
+    private final MessageDigest messageDigest;
+    private final Checksum checksum;
+    private byte[] copy;
+    private byte[] expectedDigest;
+    private volatile byte[] digest;
+
+    public DigestProcessor(MessageDigest digest)
+    {
+        this.messageDigest = digest;
+        this.checksum = null;
+    }
+
+    public DigestProcessor(Checksum checksum)
+    {
+        this.messageDigest = null;
+        this.checksum = checksum;
+    }
+
+    public byte[] getExpectedDigest()
+    {
+        return expectedDigest;
+    }
+
+    /**
+     * @param expectedDigest The digest the content must have, or null not to verify it.  Must be set before subscribing.
+     */
+    public void setExpectedDigest(byte[] expectedDigest)
+    {
+        this.expectedDigest = expectedDigest;
+    }
+
+    /**
+     * @return the digest of the content, or null if the content is not complete
+     */
+    public byte[] getDigest()
+    {
+        return digest;
+    }
+
+    @Override
+    protected ByteBuffer process(ByteBuffer item)
+    {
+        if (messageDigest != null)
+        {
+            messageDigest.update(item.duplicate());
+        }
+        else if (item.hasArray())
+        {
+            checksum.update(item.array(), item.arrayOffset() + item.position(), item.remaining());
+        }
+        else
+        {
+            // Checksums only read arrays, so copy a chunk at a time of a direct buffer
+            ByteBuffer content = item.duplicate();
+            if (copy == null)
+                copy = new byte[4096];
+            while (content.hasRemaining())
+            {
+                int length = Math.min(content.remaining(), copy.length);
+                content.get(copy, 0, length);
+                checksum.update(copy, 0, length);
+            }
+        }
+        return item;
+    }
+
+    @Override
+    protected ByteBuffer complete()
+    {
+        if (digest != null)
+            return null;
+
+        byte[] digest;
+        if (messageDigest != null)
+        {
+            digest = messageDigest.digest();
+        }
+        else
+        {
+            long value = checksum.getValue();
+            digest = new byte[]{(byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value};
+        }
+        this.digest = digest;
+
+        if (expectedDigest != null && !MessageDigest.isEqual(expectedDigest, digest))
+            throw new IllegalStateException("Digest mismatch");
+        return null;
+    }
+
+    @Override
+    protected void release(ByteBuffer item)
+    {
+        // The item is published as is, so it is released with the result
+    }
+
+    @Override
+    protected void releaseResult(ByteBuffer result)
+    {
+        super.release(result);
+    }
+
+    /**
+     * Gets the digest of the request content given by its headers.
+     * <p>The digest is taken from the {@code Digest} header for the algorithm, as in
+     * {@code Digest: SHA-256=<base64>}, or for {@code MD5} from the {@code Content-MD5} header.</p>
+     * @param request the request
+     * @param algorithm the name of the digest algorithm, as in the {@code Digest} header
+     * @return the digest, or null if the headers do not give one
+     * @throws IllegalArgumentException if the digest is not valid Base64
+     */
+    public static byte[] getExpectedDigest(HttpServletRequest request, String algorithm)
+    {
+        String header = request.getHeader("Digest");
+        if (header != null)
+        {
+            QuotedStringTokenizer tokens = new QuotedStringTokenizer(header, ",", false, false);
+            while (tokens.hasMoreTokens())
+            {
+                String token = tokens.nextToken().trim();
+                int equals = token.indexOf('=');
+                if (equals > 0 && token.substring(0, equals).trim().equalsIgnoreCase(algorithm))
+                    return Base64.getDecoder().decode(token.substring(equals + 1).trim());
+            }
+        }
+        if ("MD5".equalsIgnoreCase(algorithm))
+        {
+            header = request.getHeader("Content-MD5");
+            if (header != null)
+                return Base64.getDecoder().decode(header.trim());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,149 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.reactivestreams.Subscriber;
+
+/**
+ * A processor that signals its subscriber from an {@link Executor}.
+ * <p>Placed before a CPU intensive stage, the stage runs on the executor rather than on the
+ * container thread that read or wrote the content, so the container threads are not starved.
+ * Items are requested from the publisher ahead, up to the buffer size, and queued in a bounded
+ * single producer single consumer queue, and a single task at a time drains the queue.  More
+ * items are requested each time 75% of the buffer has been drained.</p>
+ * <p>A task drains at most a buffer of items before yielding the executor to other tasks and
+ * resubmitting itself.  If the executor rejects a task, the publisher is cancelled and the
+ * subscriber is failed with the {@link RejectedExecutionException}.</p>
+ * <p>The subscription is a {@link PooledSubscription} that releases items to the publisher, so
+ * pooled buffers pass through.</p>
+ *
+ * @param <T> the type of the items
+ */
+public class ExecutorProcessor<T> extends AsyncBoundaryProcessor<T, T>
+{
+    private final Runnable drainer = this::drain;
+    private final Executor executor;
+    private final SpscArrayQueue<T> queue;
+    private final int bufferSize;
+    private final int limit;
+    private int consumed;
+
+    public ExecutorProcessor(Executor executor)
+    {
+        this(executor, 32);
+    }
+
+    /**
+     * @param executor the executor to signal the subscriber from
+     * @param bufferSize the number of items requested ahead from the publisher
+     */
+    public ExecutorProcessor(Executor executor, int bufferSize)
+    {
+        super(bufferSize);
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+        this.executor = executor;
+        this.queue = new SpscArrayQueue<>(bufferSize);
+        this.bufferSize = bufferSize;
+        this.limit = Math.max(1, bufferSize - (bufferSize >> 2));
+    }
+
+    @Override
+    void next(T item)
+    {
+        if (!queue.offer(item))
+        {
+            release(item);
+            invalidate(new IllegalStateException("unrequested item"));
+            return;
+        }
+        schedule();
+    }
+
+    @Override
+    void dispatch()
+    {
+        try
+        {
+            executor.execute(drainer);
+        }
+        catch (RejectedExecutionException x)
+        {
+            // Fail the subscriber from this thread, which owns the drain
+            invalidate(x);
+            drain();
+        }
+    }
+
+    /**
+     * @return true if a whole buffer of items was emitted and the drain should yield
+     */
+    @Override
+    boolean emit(Subscriber<? super T> subscriber)
+    {
+        long requested = requested();
+        long emitted = 0;
+        boolean yield = false;
+        while (true)
+        {
+            if (terminal(subscriber))
+                return false;
+            if (queue.isEmpty() || emitted == requested)
+                break;
+            if (emitted == bufferSize)
+            {
+                yield = true;
+                break;
+            }
+
+            subscriber.onNext(queue.poll()); // may callback request(n)
+            ++emitted;
+            if (++consumed == limit)
+            {
+                consumed = 0;
+                upstream().request(limit);
+            }
+        }
+        emitted(requested, emitted);
+        return yield;
+    }
+
+    @Override
+    boolean isEmpty()
+    {
+        return queue.isEmpty();
+    }
+
+    @Override
+    void clear()
+    {
+        T item;
+        while ((item = queue.poll()) != null)
+            release(item);
+    }
+
+    @Override
+    void releaseResult(T result)
+    {
+        release(result);
+    }
+}
@@ -0,0 +1,249 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.Locker;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A {@link Publisher} of the content of a file, or of a range of it.
+ * <p>The file is memory mapped in regions and each item is a read only slice of a region,
+ * so the content is never copied to the heap.  Slices are direct buffers, which
+ * {@link AsyncIOSubscriber} writes with Jetty's direct buffer path.  Regions are only
+ * mapped as demand reaches them, so memory use does not depend on the size of the file.</p>
+ */
+public class FilePublisher implements Publisher<ByteBuffer>, Subscription
+{
+    private static final Logger LOG = Log.getLogger(FilePublisher.class);
+    private static final long REGION_SIZE = 64 * 1024 * 1024;
+
+    private final Locker lock = new Locker();
+    private final Path path;
+    private final int chunkSize;
+    private long position;
+    private long remaining;
+    private FileChannel channel;
+    private MappedByteBuffer region;
+    private Subscriber<? super ByteBuffer> subscriber;
+    private long demand;
+    private boolean producing;
+    private boolean done;
+    private Throwable failure;
+
+    public FilePublisher(Path path, int chunkSize) throws IOException
+    {
+        this(path, 0, -1, chunkSize);
+    }
+
+    /**
+     * @param path the file to publish
+     * @param offset the offset of the first byte to publish
+     * @param length the number of bytes to publish, or -1 for the rest of the file
+     * @param chunkSize the maximum size of each published buffer
+     * @throws IOException if the size of the file cannot be read, for example if it does not exist
+     */
+    public FilePublisher(Path path, long offset, long length, int chunkSize) throws IOException
+    {
+        long size = Files.size(path);
+        if (offset < 0 || offset > size || length < -1 || (length >= 0 && offset + length > size))
+            throw new IllegalArgumentException("Invalid range " + offset + "/" + length + " of " + size);
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        this.path = path;
+        this.chunkSize = chunkSize;
+        this.position = offset;
+        this.remaining = length < 0 ? size - offset : length;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber)
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (this.subscriber != null)
+                throw new IllegalStateException();
+            this.subscriber = subscriber;
+        }
+        subscriber.onSubscribe(this);
+    }
+
+    @Override
+    public void request(long n)
+    {
+        boolean produce;
+        try (Locker.Lock l = lock.lock())
+        {
+            if (n <= 0)
+            {
+                // Signalled by the producing thread, so that it is serialized with onNext() (rule 1.3)
+                if (!done && failure == null)
+                    failure = new IllegalArgumentException("Rule 3.9: request " + n);
+            }
+            else
+            {
+                demand += n;
+                if (demand < 0)
+                    demand = Long.MAX_VALUE;
+            }
+            // If somebody is already producing (could be this thread in a higher stack frame),
+            // then it will see the new demand.
+            produce = !producing && !done;
+            producing |= produce;
+        }
+
+        if (produce)
+            produce();
+    }
+
+    @Override
+    public void cancel()
+    {
+        boolean close;
+        try (Locker.Lock l = lock.lock())
+        {
+            close = !done && !producing;
+            done = true;
+        }
+        if (close)
+            close();
+    }
+
+    private void produce()
+    {
+        while (true)
+        {
+            boolean complete = false;
+            Throwable error = null;
+            try (Locker.Lock l = lock.lock())
+            {
+                if (failure != null && !done)
+                {
+                    error = failure;
+                    done = true;
+                    producing = false;
+                }
+                else if (done)
+                {
+                    producing = false;
+                    break;
+                }
+                else if (remaining == 0)
+                {
+                    done = true;
+                    complete = true;
+                }
+                else if (demand == 0)
+                {
+                    producing = false;
+                    return;
+                }
+                else
+                {
+                    --demand;
+                }
+            }
+
+            if (error != null)
+            {
+                close();
+                subscriber.onError(error);
+                return;
+            }
+
+            if (complete)
+            {
+                close();
+                subscriber.onComplete();
+                return;
+            }
+
+            ByteBuffer chunk;
+            try
+            {
+                chunk = nextChunk();
+            }
+            catch (IOException failure)
+            {
+                try (Locker.Lock l = lock.lock())
+                {
+                    done = true;
+                    producing = false;
+                }
+                close();
+                subscriber.onError(failure);
+                return;
+            }
+
+            if (LOG.isDebugEnabled())
+                LOG.debug("Next: {} of {}", chunk, path);
+            subscriber.onNext(chunk); // may callback request(n)
+        }
+
+        // Cancelled while producing.
+        close();
+    }
+
+    private ByteBuffer nextChunk() throws IOException
+    {
+        if (region == null || !region.hasRemaining())
+        {
+            if (channel == null)
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            long size = Math.min(remaining, REGION_SIZE);
+            region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            position += size;
+        }
+
+        int length = Math.min(chunkSize, region.remaining());
+        ByteBuffer chunk = region.slice();
+        chunk.limit(length);
+        region.position(region.position() + length);
+        remaining -= length;
+        return chunk.asReadOnlyBuffer();
+    }
+
+    private void close()
+    {
+        region = null;
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                LOG.ignore(e);
+            }
+            channel = null;
+        }
+    }
+}
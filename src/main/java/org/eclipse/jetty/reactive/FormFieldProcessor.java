@@ -1,59 +1,36 @@
 package org.eclipse.jetty.reactive;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import org.eclipse.jetty.util.BufferUtil;
 import org.eclipse.jetty.util.Fields;
-import org.eclipse.jetty.util.Utf8StringBuilder;
 
 /*
- * A processor that converts ByteBuffers to a stream of name value pairs
+ * A processor that converts ByteBuffers to a stream of name value pairs.
+ * If the form exceeds its limits, the publisher is cancelled and the subscriber
+ * is failed with an IllegalStateException.
  */
 public class FormFieldProcessor extends IteratingProcessor<ByteBuffer,Fields.Field>
 {
-    final Utf8StringBuilder builder = new Utf8StringBuilder();
-    String name;
-    
+    private final FormLimits limits = new FormLimits();
+    private final FormScanner scanner = new FormScanner(StandardCharsets.UTF_8, limits);
+
+    /**
+     * @return the limits of the form, that may be changed before subscribing
+     */
+    public FormLimits getFormLimits()
+    {
+        return limits;
+    }
+
+
     @Override
     protected Fields.Field process(ByteBuffer buffer)
     {
-        String value=null;
-        while(BufferUtil.hasContent(buffer))
-        {
-            byte b = buffer.get();
-            if (name==null)
-            {
-                if (b=='=')
-                {
-                    name=builder.toString();
-                    builder.reset();
-                }
-                else
-                    builder.append(b);
-            }
-            else
-            {
-                if (b=='&')
-                {
-                    value=builder.toString();
-                    builder.reset();
-                    break;
-                }
-                else
-                    builder.append(b);
-            }
-        }
-        
-        if (name!=null && value!=null)
-        {
-            Fields.Field field = new Fields.Field(name,value);
-            name=null;
-            return field;
-        }
-        return null;
+        FormFieldView view=scanner.next(buffer);
+        return view==null?null:view.toField();
     }
-
-    
     
     @Override
     protected boolean isConsumed(ByteBuffer item)
@@ -66,14 +43,7 @@ public class FormFieldProcessor extends IteratingProcessor<ByteBuffer,Fields.Fie
     @Override
     protected Fields.Field complete()
     {
-        if (name==null)
-            return null;
-        
-        String value=builder.toString();
-        builder.reset();
-        
-        Fields.Field field = new Fields.Field(name,value);
-        name=null;
-        return field;
+        FormFieldView view=scanner.complete();
+        return view==null?null:view.toField();
     }
 }
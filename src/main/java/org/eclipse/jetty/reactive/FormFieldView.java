@@ -0,0 +1,181 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.eclipse.jetty.util.Fields;
+import org.eclipse.jetty.util.TypeUtil;
+
+/**
+ * A form field as a view of the bytes it was parsed from.
+ * <p>The name and value are only decoded to strings when first accessed.  While the
+ * source buffer is in use the view refers to it directly; when the buffer is released
+ * the view {@link #detach() detaches}, copying the bytes that have not been decoded yet.</p>
+ * <p>Names and values are URL decoded ({@code %XX} and {@code +}).  The field is scanned
+ * once for the {@code =} and for escapes, so fields without escapes are decoded directly
+ * from their bytes.  A field is only decoded once all its bytes have been received, so
+ * escapes that span buffers are decoded correctly.</p>
+ */
+public class FormFieldView
+{
+    private final Charset charset;
+    private ByteBuffer bytes;
+    private int start;
+    private int equals;
+    private int end;
+    private boolean escaped;
+    private String name;
+    private String value;
+
+    FormFieldView(ByteBuffer bytes, int start, int end, Charset charset)
+    {
+        this.charset = charset;
+        this.bytes = bytes;
+        this.start = start;
+        this.end = end;
+        this.equals = end;
+        scan();
+    }
+
+    private void scan()
+    {
+        if (bytes.hasArray())
+        {
+            byte[] array = bytes.array();
+            int offset = bytes.arrayOffset();
+            for (int i = start + offset, limit = end + offset; i < limit; ++i)
+                scan(array[i], i - offset);
+        }
+        else
+        {
+            for (int i = start; i < end; ++i)
+                scan(bytes.get(i), i);
+        }
+    }
+
+    private void scan(byte b, int index)
+    {
+        if (b == '=')
+        {
+            if (equals == end)
+                equals = index;
+        }
+        else if (b == '%' || b == '+')
+        {
+            escaped = true;
+        }
+    }
+
+    public synchronized String getName()
+    {
+        if (name == null)
+            name = decode(start, equals);
+        return name;
+    }
+
+    public synchronized String getValue()
+    {
+        if (value == null)
+            value = equals < end ? decode(equals + 1, end) : "";
+        return value;
+    }
+
+    /**
+     * @return the length in bytes of the encoded name and value
+     */
+    public int length()
+    {
+        return end - start;
+    }
+
+    public Fields.Field toField()
+    {
+        return new Fields.Field(getName(), getValue());
+    }
+
+    synchronized boolean isViewOf(ByteBuffer buffer)
+    {
+        return bytes == buffer;
+    }
+
+    /**
+     * Stops referring to the source buffer, so that it can be reused.
+     */
+    synchronized void detach()
+    {
+        if (name != null && value != null)
+        {
+            bytes = null;
+            return;
+        }
+        byte[] copy = new byte[end - start];
+        ByteBuffer source = bytes.duplicate();
+        source.limit(end).position(start);
+        source.get(copy);
+        bytes = ByteBuffer.wrap(copy);
+        equals -= start;
+        end -= start;
+        start = 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes contain an invalid {@code %XX} escape
+     */
+    private String decode(int from, int to)
+    {
+        if (escaped)
+            return unescape(from, to);
+        if (bytes.hasArray())
+            return new String(bytes.array(), bytes.arrayOffset() + from, to - from, charset);
+        ByteBuffer source = bytes.duplicate();
+        source.limit(to).position(from);
+        return charset.decode(source).toString();
+    }
+
+    private String unescape(int from, int to)
+    {
+        byte[] decoded = new byte[to - from];
+        int length = 0;
+        for (int i = from; i < to; ++i)
+        {
+            byte b = bytes.get(i);
+            if (b == '+')
+            {
+                b = ' ';
+            }
+            else if (b == '%')
+            {
+                if (i + 2 >= to)
+                    throw new IllegalArgumentException("Invalid escape in form field");
+                b = (byte)((TypeUtil.convertHexDigit(bytes.get(i + 1)) << 4) + TypeUtil.convertHexDigit(bytes.get(i + 2)));
+                i += 2;
+            }
+            decoded[length++] = b;
+        }
+        return new String(decoded, 0, length, charset);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x[%s=%s]", getClass().getSimpleName(), hashCode(), getName(), getValue());
+    }
+}
@@ -0,0 +1,79 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jetty.util.BufferUtil;
+
+/**
+ * A processor that converts ByteBuffers to a stream of {@link FormFieldView}s.
+ * <p>Fields that lie within a single buffer are views of that buffer, so no bytes
+ * are copied and strings are only created for the names and values that are accessed.
+ * The views are detached from a buffer before it is released to its pool.</p>
+ * <p>If the form exceeds its limits, the publisher is cancelled and the subscriber is
+ * failed with an {@link IllegalStateException}.</p>
+ */
+public class FormFieldViewProcessor extends IteratingProcessor<ByteBuffer,FormFieldView>
+{
+    private final FormLimits limits = new FormLimits();
+    private final FormScanner scanner = new FormScanner(StandardCharsets.UTF_8, limits);
+    private final List<FormFieldView> views = new ArrayList<>();
+
+    /**
+     * @return the limits of the form, that may be changed before subscribing
+     */
+    public FormLimits getFormLimits()
+    {
+        return limits;
+    }
+
+    @Override
+    protected FormFieldView process(ByteBuffer buffer)
+    {
+        FormFieldView view = scanner.next(buffer);
+        if (view != null && view.isViewOf(buffer))
+            views.add(view);
+        return view;
+    }
+
+    @Override
+    protected boolean isConsumed(ByteBuffer item)
+    {
+        return BufferUtil.isEmpty(item);
+    }
+
+    @Override
+    protected void release(ByteBuffer item)
+    {
+        for (FormFieldView view : views)
+            view.detach();
+        views.clear();
+        super.release(item);
+    }
+
+    @Override
+    protected FormFieldView complete()
+    {
+        return scanner.complete();
+    }
+}
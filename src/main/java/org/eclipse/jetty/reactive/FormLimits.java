@@ -0,0 +1,79 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+/**
+ * The limits of the form processors, that bound the memory used to parse a form.
+ * <p>The number of fields, the size of each field and the total size of the content may be
+ * limited.  A limit that is exceeded causes an {@link IllegalStateException}, which the
+ * processors use to fail their subscriber and cancel their publisher.  A negative limit is
+ * unlimited.  The defaults, 1000 keys and 200000 bytes of content like Jetty's own form
+ * handling, may be changed with the {@code org.eclipse.jetty.reactive.maxFormKeys},
+ * {@code maxFieldSize} and {@code maxFormContentSize} system properties.</p>
+ * <p>The limits must be set before the processor is subscribed.</p>
+ */
+public class FormLimits
+{
+    static final int DEFAULT_MAX_FORM_KEYS = Integer.getInteger("org.eclipse.jetty.reactive.maxFormKeys", 1000);
+    static final int DEFAULT_MAX_FIELD_SIZE = Integer.getInteger("org.eclipse.jetty.reactive.maxFieldSize", -1);
+    static final long DEFAULT_MAX_FORM_CONTENT_SIZE = Long.getLong("org.eclipse.jetty.reactive.maxFormContentSize", 200000);
+
+    private int maxFormKeys = DEFAULT_MAX_FORM_KEYS;
+    private int maxFieldSize = DEFAULT_MAX_FIELD_SIZE;
+    private long maxFormContentSize = DEFAULT_MAX_FORM_CONTENT_SIZE;
+
+    public int getMaxFormKeys()
+    {
+        return maxFormKeys;
+    }
+
+    /**
+     * @param maxFormKeys The maximum number of fields, or -1 for no limit.
+     */
+    public void setMaxFormKeys(int maxFormKeys)
+    {
+        this.maxFormKeys = maxFormKeys;
+    }
+
+    public int getMaxFieldSize()
+    {
+        return maxFieldSize;
+    }
+
+    /**
+     * @param maxFieldSize The maximum encoded size of a field, or -1 for no limit.
+     */
+    public void setMaxFieldSize(int maxFieldSize)
+    {
+        this.maxFieldSize = maxFieldSize;
+    }
+
+    public long getMaxFormContentSize()
+    {
+        return maxFormContentSize;
+    }
+
+    /**
+     * @param maxFormContentSize The maximum size of the content, or -1 for no limit.
+     */
+    public void setMaxFormContentSize(long maxFormContentSize)
+    {
+        this.maxFormContentSize = maxFormContentSize;
+    }
+}
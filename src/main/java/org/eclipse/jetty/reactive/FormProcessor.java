@@ -18,7 +18,6 @@
 
 package org.eclipse.jetty.reactive;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
@@ -32,9 +31,19 @@ import org.reactivestreams.Subscription;
 
 public class FormProcessor implements Processor<ByteBuffer, Fields>
 {
-    private final SimpleFormParser _parser = new SimpleFormParser("UTF-8");
+    private final FormLimits _limits = new FormLimits();
+    private final SimpleFormParser _parser = new SimpleFormParser("UTF-8", _limits);
     private Subscription _subscription;
     private Subscriber<? super Fields> _subscriber;
+    private boolean _failed;
+
+    /**
+     * @return the limits of the form, that may be changed before subscribing
+     */
+    public FormLimits getFormLimits()
+    {
+        return _limits;
+    }
 
     @Override
     public void onSubscribe(Subscription subscription)
@@ -45,14 +54,39 @@ public class FormProcessor implements Processor<ByteBuffer, Fields>
     @Override
     public void onNext(ByteBuffer item)
     {
-        _parser.parse(item);
+        if (_failed)
+            return;
+        try
+        {
+            _parser.parse(item);
+        }
+        catch (IllegalStateException | IllegalArgumentException x)
+        {
+            fail(x);
+            return;
+        }
+        finally
+        {
+            ReactiveSupport.release(_subscription, item);
+        }
         _subscription.request(1);
     }
 
     @Override
     public void onComplete()
     {
-        _parser.close();
+        if (_failed)
+            return;
+        try
+        {
+            _parser.close();
+        }
+        catch (IllegalStateException | IllegalArgumentException x)
+        {
+            _failed = true;
+            _subscriber.onError(x);
+            return;
+        }
         _subscriber.onNext(_parser._fields);
         _subscriber.onComplete();
     }
@@ -60,6 +94,18 @@ public class FormProcessor implements Processor<ByteBuffer, Fields>
     @Override
     public void onError(Throwable failure)
     {
+        if (_failed)
+            return;
+        _failed = true;
+        _subscriber.onError(failure);
+    }
+
+    private void fail(Throwable failure)
+    {
+        // Stop reading the form and drop the fields parsed so far
+        _failed = true;
+        _subscription.cancel();
+        _parser._fields.clear();
         _subscriber.onError(failure);
     }
 
@@ -90,71 +136,28 @@ public class FormProcessor implements Processor<ByteBuffer, Fields>
     private static class SimpleFormParser implements Closeable
     {
         private final Fields _fields = new Fields(true);
-        private final ByteArrayOutputStream _store = new ByteArrayOutputStream();
-        private final String _encoding;
-        private State _state = State.NAME;
-        private String _name;
+        private final FormScanner _scanner;
 
-        private SimpleFormParser(String encoding)
+        private SimpleFormParser(String encoding, FormLimits limits)
         {
-            _encoding = encoding;
+            _scanner = new FormScanner(Charset.forName(encoding), limits);
         }
 
         private void parse(ByteBuffer buffer)
         {
             while (buffer.hasRemaining())
             {
-                byte current = buffer.get();
-                switch (_state)
-                {
-                    case NAME:
-                    {
-                        if (current == '=')
-                        {
-                            _name = asString(_store.toByteArray(), _encoding);
-                            _store.reset();
-                            _state = State.VALUE;
-                        }
-                        else
-                        {
-                            _store.write(current);
-                        }
-                        break;
-                    }
-                    case VALUE:
-                    {
-                        if (current == '&')
-                        {
-                            String value = asString(_store.toByteArray(), _encoding);
-                            _store.reset();
-                            _fields.add(_name, value);
-                            _state = State.NAME;
-                        }
-                        else
-                        {
-                            _store.write(current);
-                        }
-                        break;
-                    }
-                }
+                FormFieldView field = _scanner.next(buffer);
+                if (field != null)
+                    _fields.add(field.getName(), field.getValue());
             }
         }
 
-        private String asString(byte[] bytes, String encoding)
-        {
-            return new String(bytes, Charset.forName(encoding));
-        }
-
         public void close()
         {
-            String value = asString(_store.toByteArray(), _encoding);
-            _store.reset();
-            _fields.add(_name, value);
-        }
-
-        private enum State
-        {
-            NAME, VALUE
+            FormFieldView field = _scanner.complete();
+            if (field != null)
+                _fields.add(field.getName(), field.getValue());
         }
     }
 }
@@ -0,0 +1,163 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Scans {@code application/x-www-form-urlencoded} content for fields.
+ * <p>Each buffer is searched in bulk for the {@code &} separators.  A field that lies
+ * within a single buffer is returned as a {@link FormFieldView} of that buffer, without
+ * copying.  Only the bytes of a field that spans buffers are accumulated and copied.</p>
+ * <p>The number of fields, the size of each field and the total size of the content are
+ * bounded by the {@link FormLimits} of the processor.</p>
+ */
+class FormScanner
+{
+    private final Charset charset;
+    private final FormLimits limits;
+    private byte[] partial = new byte[32];
+    private int partialLength;
+    private int keys;
+    private long contentSize;
+
+    FormScanner(Charset charset, FormLimits limits)
+    {
+        this.charset = charset;
+        this.limits = limits;
+    }
+
+    /**
+     * @param buffer the content to scan, whose position is advanced past the returned field
+     * @return the next field ending in the buffer, or null if the buffer has been consumed
+     * @throws IllegalStateException if a limit is exceeded
+     */
+    FormFieldView next(ByteBuffer buffer)
+    {
+        // Check the content before scanning it, so that an oversized form fails fast
+        long maxFormContentSize = limits.getMaxFormContentSize();
+        if (maxFormContentSize >= 0 && contentSize + buffer.remaining() > maxFormContentSize)
+            throw new IllegalStateException("Form is larger than " + maxFormContentSize);
+
+        while (buffer.hasRemaining())
+        {
+            int start = buffer.position();
+            int end = indexOf(buffer, start, buffer.limit(), (byte)'&');
+            if (end < 0)
+            {
+                append(buffer, start, buffer.limit());
+                consume(buffer, buffer.limit());
+                return null;
+            }
+
+            consume(buffer, end + 1);
+            if (partialLength > 0)
+            {
+                append(buffer, start, end);
+                return takePartial();
+            }
+            if (end > start)
+            {
+                checkFieldSize(end - start);
+                return newField(buffer, start, end);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the last field, that is not terminated by a {@code &}, or null if there is none
+     * @throws IllegalStateException if a limit is exceeded
+     */
+    FormFieldView complete()
+    {
+        return partialLength > 0 ? takePartial() : null;
+    }
+
+    private FormFieldView takePartial()
+    {
+        byte[] bytes = Arrays.copyOf(partial, partialLength);
+        partialLength = 0;
+        return newField(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    private FormFieldView newField(ByteBuffer buffer, int start, int end)
+    {
+        int maxFormKeys = limits.getMaxFormKeys();
+        if (maxFormKeys >= 0 && ++keys > maxFormKeys)
+            throw new IllegalStateException("Form has more than " + maxFormKeys + " keys");
+        return new FormFieldView(buffer, start, end, charset);
+    }
+
+    private void consume(ByteBuffer buffer, int position)
+    {
+        contentSize += position - buffer.position();
+        buffer.position(position);
+    }
+
+    private void checkFieldSize(int size)
+    {
+        int maxFieldSize = limits.getMaxFieldSize();
+        if (maxFieldSize >= 0 && size > maxFieldSize)
+            throw new IllegalStateException("Form field is larger than " + maxFieldSize);
+    }
+
+    private void append(ByteBuffer buffer, int start, int end)
+    {
+        int length = end - start;
+        // Check before growing, so that an oversized field is never accumulated
+        checkFieldSize(partialLength + length);
+        if (partialLength + length > partial.length)
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+        ByteBuffer source = buffer.duplicate();
+        source.limit(end).position(start);
+        source.get(partial, partialLength, length);
+        partialLength += length;
+    }
+
+    /**
+     * @param buffer the buffer to search, with absolute indexes
+     * @param from the index to search from
+     * @param to the index to search to, exclusive
+     * @param b the byte to search for
+     * @return the index of the byte, or -1 if not found
+     */
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte b)
+    {
+        if (buffer.hasArray())
+        {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for (int i = from + offset, end = to + offset; i < end; ++i)
+            {
+                if (array[i] == b)
+                    return i - offset;
+            }
+            return -1;
+        }
+        for (int i = from; i < to; ++i)
+        {
+            if (buffer.get(i) == b)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,340 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+
+/**
+ * A processor that inflates {@code gzip} or {@code deflate} content.
+ * <p>The content is inflated incrementally into buffers leased from a {@link ByteBufferPool},
+ * as many per input buffer as there is demand for.  The subscription is a {@link PooledSubscription},
+ * so subscribers may return the inflated buffers to the pool once they have used them.</p>
+ * <p>Concatenated gzip members are inflated in sequence and the CRC and size of each are
+ * verified.  To protect against decompression bombs, the content fails once the inflated
+ * size exceeds the {@link #setMaxInflationRatio(int) maximum ratio} to the compressed size.
+ * Invalid, truncated or excessive content fails the subscriber with an
+ * {@link IllegalStateException} and cancels the publisher.</p>
+ */
+public class InflatingProcessor extends IteratingProcessor<ByteBuffer, ByteBuffer>
+{
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+
+    private enum State
+    {
+        HEADER, EXTRA_LENGTH, EXTRA, NAME, COMMENT, HCRC, DATA, TRAILER, END
+    }
+
+    private final boolean gzip;
+    private final ByteBufferPool pool;
+    private final int bufferSize;
+    private final Inflater inflater;
+    private final CRC32 crc = new CRC32();
+    private int maxInflationRatio = 100;
+    private State state;
+    private int flags;
+    private int count;
+    private long value;
+    private boolean member;
+    private ByteBuffer input;
+    private int inputStart;
+    private int inputLength;
+    private byte[] copy;
+    private boolean drained = true;
+    private long read;
+    private long written;
+
+    /**
+     * @param gzip true for {@code gzip} content, false for {@code deflate} (zlib) content
+     * @param pool the pool to lease the inflated buffers from
+     * @param bufferSize the size of the inflated buffers
+     */
+    public InflatingProcessor(boolean gzip, ByteBufferPool pool, int bufferSize)
+    {
+        this.gzip = gzip;
+        this.pool = pool;
+        this.bufferSize = bufferSize;
+        this.inflater = new Inflater(gzip);
+        this.state = gzip ? State.HEADER : State.DATA;
+    }
+
+    public int getMaxInflationRatio()
+    {
+        return maxInflationRatio;
+    }
+
+    /**
+     * @param maxInflationRatio The maximum ratio of inflated to compressed bytes, or 0 for no limit.
+     * The first 1024 compressed bytes are counted as 1024, so that small content is not rejected.
+     */
+    public void setMaxInflationRatio(int maxInflationRatio)
+    {
+        this.maxInflationRatio = maxInflationRatio;
+    }
+
+    @Override
+    protected ByteBuffer process(ByteBuffer item)
+    {
+        while (true)
+        {
+            if (state == State.DATA)
+            {
+                ByteBuffer result = inflate(item);
+                if (result != null)
+                    return result;
+                if (state == State.DATA && !item.hasRemaining())
+                    return null;
+                continue;
+            }
+
+            if (!item.hasRemaining())
+                return null;
+            if (state == State.END)
+                throw new IllegalStateException("Content after the end of the deflate stream");
+            parse(item.get() & 0xFF);
+        }
+    }
+
+    @Override
+    protected ByteBuffer complete()
+    {
+        // Flush any output still held by the inflater
+        ByteBuffer result = state == State.DATA ? inflate(BufferUtil.EMPTY_BUFFER) : null;
+        if (result != null)
+            return result;
+
+        inflater.end();
+        boolean complete = gzip ? state == State.HEADER && count == 0 && member : state == State.END;
+        if (!complete)
+            throw new IllegalStateException("Truncated compressed content");
+        return null;
+    }
+
+    @Override
+    protected void terminate()
+    {
+        inflater.end();
+    }
+
+    @Override
+    protected boolean isConsumed(ByteBuffer item)
+    {
+        return !item.hasRemaining() && drained;
+    }
+
+    @Override
+    protected void releaseResult(ByteBuffer result)
+    {
+        pool.release(result);
+    }
+
+    private ByteBuffer inflate(ByteBuffer item)
+    {
+        if (inflater.needsInput())
+        {
+            if (item.hasRemaining())
+                setInput(item);
+            else if (drained)
+                return null;
+        }
+
+        ByteBuffer buffer = pool.acquire(bufferSize, false);
+        int length;
+        try
+        {
+            length = inflater.inflate(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+        }
+        catch (DataFormatException x)
+        {
+            pool.release(buffer);
+            throw new IllegalStateException("Invalid compressed content", x);
+        }
+
+        if (input == item)
+        {
+            // Only the bytes consumed by the inflater are consumed from the item
+            int position = inputStart + inputLength - inflater.getRemaining();
+            read += position - item.position();
+            item.position(position);
+            if (inflater.getRemaining() == 0)
+                input = null;
+        }
+
+        // The end of the stream may come with the last output, so check after every inflate
+        boolean finished = inflater.finished();
+        if (finished)
+        {
+            state = gzip ? State.TRAILER : State.END;
+            count = 0;
+            value = 0;
+        }
+
+        if (length > 0)
+        {
+            written += length;
+            if (maxInflationRatio > 0 && written > maxInflationRatio * Math.max(read, 1024))
+            {
+                pool.release(buffer);
+                throw new IllegalStateException("Inflation ratio exceeds " + maxInflationRatio);
+            }
+            crc.update(buffer.array(), buffer.arrayOffset(), length);
+            buffer.position(0);
+            buffer.limit(length);
+            // A full buffer may leave more output in the inflater
+            drained = finished || length < buffer.capacity();
+            return buffer;
+        }
+
+        pool.release(buffer);
+        drained = true;
+        if (!finished && inflater.needsDictionary())
+            throw new IllegalStateException("Compressed content needs a dictionary");
+        return null;
+    }
+
+    private void setInput(ByteBuffer item)
+    {
+        input = item;
+        inputStart = item.position();
+        if (item.hasArray())
+        {
+            inputLength = item.remaining();
+            inflater.setInput(item.array(), item.arrayOffset() + inputStart, inputLength);
+        }
+        else
+        {
+            // The inflater only reads arrays, so copy a chunk of a direct buffer
+            if (copy == null)
+                copy = new byte[bufferSize];
+            inputLength = Math.min(item.remaining(), copy.length);
+            ByteBuffer source = item.duplicate();
+            source.get(copy, 0, inputLength);
+            inflater.setInput(copy, 0, inputLength);
+        }
+    }
+
+    private void parse(int b)
+    {
+        switch (state)
+        {
+            case HEADER:
+                member = false;
+                if (count == 0 && b != 0x1F || count == 1 && b != 0x8B || count == 2 && b != 8)
+                    throw new IllegalStateException("Invalid gzip header");
+                if (count == 3)
+                    flags = b;
+                if (++count == 10)
+                    next(State.HEADER);
+                break;
+
+            case EXTRA_LENGTH:
+                value |= b << (8 * count);
+                if (++count == 2)
+                {
+                    if (value == 0)
+                        next(State.EXTRA);
+                    else
+                        state = State.EXTRA;
+                }
+                break;
+
+            case EXTRA:
+                if (--value == 0)
+                    next(State.EXTRA);
+                break;
+
+            case NAME:
+                if (b == 0)
+                    next(State.NAME);
+                break;
+
+            case COMMENT:
+                if (b == 0)
+                    next(State.COMMENT);
+                break;
+
+            case HCRC:
+                if (++count == 2)
+                    next(State.HCRC);
+                break;
+
+            case TRAILER:
+                value |= (long)b << (8 * (count & 3));
+                if (++count == 4)
+                {
+                    if (value != crc.getValue())
+                        throw new IllegalStateException("Invalid gzip CRC");
+                    value = 0;
+                }
+                else if (count == 8)
+                {
+                    if (value != (inflater.getBytesWritten() & 0xFFFFFFFFL))
+                        throw new IllegalStateException("Invalid gzip size");
+                    // Another member may follow
+                    member = true;
+                    count = 0;
+                    value = 0;
+                    state = State.HEADER;
+                }
+                break;
+
+            default:
+                throw new IllegalStateException(state.toString());
+        }
+    }
+
+    /**
+     * Moves to the next header field present after the given one, or to the data.
+     */
+    private void next(State after)
+    {
+        count = 0;
+        value = 0;
+        if (after == State.HEADER && (flags & FEXTRA) != 0)
+        {
+            state = State.EXTRA_LENGTH;
+        }
+        else if (after.compareTo(State.NAME) < 0 && (flags & FNAME) != 0)
+        {
+            state = State.NAME;
+        }
+        else if (after.compareTo(State.COMMENT) < 0 && (flags & FCOMMENT) != 0)
+        {
+            state = State.COMMENT;
+        }
+        else if (after.compareTo(State.HCRC) < 0 && (flags & FHCRC) != 0)
+        {
+            state = State.HCRC;
+        }
+        else
+        {
+            inflater.reset();
+            crc.reset();
+            state = State.DATA;
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package org.eclipse.jetty.reactive;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
-import org.eclipse.jetty.util.thread.Locker;
 import org.reactivestreams.Processor;
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
@@ -26,31 +28,88 @@ import org.reactivestreams.Subscription;
  * Completion propagation is also deferred until any previous item is completely
  * processed
  * </p>
- * 
+ * <p>
+ * The state is lock free: the iterating and terminal flags and the downstream demand
+ * are held in a single atomic word, and items are queued in a single producer single
+ * consumer queue.  A thread that signals while another is iterating just sets the
+ * MISSED flag, so the iterating thread goes around its loop again.
+ * </p>
+ * <p>
+ * By default demand is forwarded to the publisher only when the queue is empty, so the
+ * processor is in lock step with its subscriber.  With a {@link #setPrefetch(int) prefetch},
+ * that many items are requested ahead and more are requested each time 75% of them have
+ * been consumed, so the publisher can produce the next items while the current one is being
+ * processed.  Replenishing is deferred while the queued items exceed the
+ * {@link #setMaxQueuedBytes(long) maximum queued bytes}.
+ * </p>
  */
 public abstract class IteratingProcessor<T,R> implements Processor<T,R>
 {
-    private final Locker lock = new Locker();
-    private final Deque<T> queue = new ArrayDeque<>();
-    private Subscription publisher;
-    private Subscriber<? super R> subscriber;
-    private long requests;
-    private long requested;
-    private boolean complete;
-    private boolean iterating;
+    private static final long ITERATING = 1L<<62;
+    private static final long MISSED = 1L<<61;
+    private static final long COMPLETE = 1L<<60;
+    private static final long FAILED = 1L<<59;
+    private static final long CANCELLED = 1L<<58;
+    private static final long TERMINATED = 1L<<57;
+    private static final long DEMAND = TERMINATED-1;
+
+    private final AtomicLong state = new AtomicLong();
+    private final AtomicLong requested = new AtomicLong();
+    // Counts onSubscribe() and subscribe() to 2, then 3 once the subscriber has its subscription
+    private final AtomicInteger connecting = new AtomicInteger();
+    private final AtomicReference<Subscriber<? super R>> subscriber = new AtomicReference<>();
+    private final SpscQueue<T> queue = new SpscQueue<>();
+    private final Emitter emitter = new Emitter();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private int prefetch;
+    private long maxQueuedBytes = Long.MAX_VALUE;
+    private boolean primed;
+    private int consumedItems;
+    private T head;
+    private long headSize;
+    private final AtomicReference<Subscription> publisher = new AtomicReference<>();
+    private volatile Throwable failure;
+
+    public int getPrefetch()
+    {
+        return prefetch;
+    }
+
+    /**
+     * @param prefetch The number of items to request ahead from the publisher, or 0 to
+     * only request the items demanded by the subscriber.  Must be set before subscribing.
+     */
+    public void setPrefetch(int prefetch)
+    {
+        this.prefetch = prefetch;
+    }
+
+    public long getMaxQueuedBytes()
+    {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * @param maxQueuedBytes The queued bytes, as given by {@link #sizeOf(Object)}, above which
+     * prefetched items are not replenished.  Must be set before subscribing.
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes)
+    {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
 
     @Override
     public void onSubscribe(Subscription s)
     {
         if (s==null)
             throw new NullPointerException();
-        boolean connect=false;
-        try(Locker.Lock l = lock.lock();)
+        // Rule 2.5: a second subscription is cancelled
+        if (!publisher.compareAndSet(null,s))
         {
-            publisher=s;
-            connect=subscriber!=null;
+            s.cancel();
+            return;
         }
-        if (connect)
+        if (connecting.incrementAndGet()==2)
             connect();
     }
 
@@ -59,62 +118,38 @@ public abstract class IteratingProcessor<T,R> implements Processor<T,R>
     {
         if (item==null)
             throw new NullPointerException();
-        boolean iterate;
-        try(Locker.Lock l = lock.lock();)
+        
+        // Sanity checks
+        long s=state.get();
+        if ((s&COMPLETE)!=0)
+            return;
+        // Items still in flight once cancelled or failed are queued for iterate() to release
+        if ((s&(CANCELLED|FAILED))==0 && requested.getAndDecrement()<=0)
         {
-            // Sanity checks
-            if (complete)
-                return;
-            if (requested==0)
-            {
-                publisher.cancel();
-                subscriber.onError(new IllegalStateException("unrequested item"));
-                return;
-            }
-            
-            requested--;
-            queue.add(item);
-            
-            // If somebody is already iterating (could be this thread in a higher stack frame),
-            // then don't re-enter iterate() here
-            iterate = !iterating && requests>0;
-            iterating |= iterate;
+            requested.incrementAndGet();
+            publisher.get().cancel();
+            fail(new IllegalStateException("unrequested item"));
+            return;
         }
         
-        if (iterate)
-            iterate();
+        queuedBytes.addAndGet(sizeOf(item));
+        queue.offer(item);
+        
+        // If somebody is already iterating (could be this thread in a higher stack frame),
+        // then don't re-enter iterate() here
+        iterate();
     }
 
     @Override
     public void onError(Throwable t)
     {
-        boolean onError=false;
-        try(Locker.Lock l = lock.lock();)
-        {
-            onError=!complete;
-            complete=true;
-            requests=0;
-            requested=0;
-            queue.clear();
-        }
-        if (onError)
-            subscriber.onError(t);
+        fail(t);
     }
 
     @Override
     public void onComplete()
     {
-        boolean iterate;
-        try(Locker.Lock l = lock.lock();)
-        {
-            if (complete)
-                return;
-            complete=true;
-            iterate = !iterating && requests>0;
-            iterating |= iterate;
-        }
-
-        if (iterate)
+        if (set(COMPLETE))
             iterate();
     }
 
@@ -123,59 +158,90 @@ public abstract class IteratingProcessor<T,R> implements Processor<T,R>
     {
         if (s==null)
             throw new NullPointerException();
-        boolean connect=false;
-        try(Locker.Lock l = lock.lock();)
-        {
-            if (subscriber!=null)
-                throw new IllegalStateException("already subscribed");
-            subscriber=s;
-            connect=publisher!=null;
-        }
-
-        if (connect)
+        if (!subscriber.compareAndSet(null,s))
+            throw new IllegalStateException("already subscribed");
+        if (connecting.incrementAndGet()==2)
             connect();
     }
     
     private void connect()
     {
-        subscriber.onSubscribe(new Subscription()
+        subscriber.get().onSubscribe(new PooledSubscription<R>()
         {
             @Override
             public void request(long n)
             {
-                boolean iterate;
-                long demand;
-                try(Locker.Lock l = lock.lock();)
+                if (n<=0)
+                {
+                    publisher.get().cancel();
+                    fail(new IllegalArgumentException("Rule 3.9: request "+n));
+                    return;
+                }
+                while(true)
                 {
-                    requests+=n;
-                    iterate = !iterating && requests>0 && (complete || !queue.isEmpty());
-                    iterating |= iterate;
-                    
-                    demand=(iterating || !queue.isEmpty())?0:(requests-requested);
-                    requested+=demand;
+                    long s=state.get();
+                    long demand=(s&DEMAND)+n;
+                    if (demand<0 || demand>DEMAND)
+                        demand=DEMAND;
+                    if (state.compareAndSet(s,(s&~DEMAND)|demand))
+                        break;
                 }
-                if (iterate)
-                    iterate();
-                else if (demand>0)
-                    publisher.request(demand);
+                iterate();
             }
             
             @Override
             public void cancel()
             {
-                boolean cancel=false;
-                try(Locker.Lock l = lock.lock();) 
+                while(true)
                 {
-                    cancel=!complete;
-                    complete=true;
-                    requests=0;
-                    requested=0;
-                    queue.clear();
+                    long s=state.get();
+                    if ((s&(FAILED|CANCELLED))!=0)
+                        return;
+                    if (state.compareAndSet(s,s|CANCELLED))
+                    {
+                        if ((s&COMPLETE)==0)
+                            publisher.get().cancel();
+                        iterate();
+                        return;
+                    }
                 }
-                if (cancel)
-                    publisher.cancel();
+            }
+
+            @Override
+            public void release(R result)
+            {
+                releaseResult(result);
             }
         });
+        
+        // Process signals received before or during onSubscribe
+        connecting.set(3);
+        iterate();
+    }
+    
+    private void fail(Throwable t)
+    {
+        if ((state.get()&(COMPLETE|FAILED|CANCELLED))!=0)
+            return;
+        failure=t;
+        if (set(FAILED))
+            iterate();
+    }
+    
+    /**
+     * @param flag The terminal flag to set
+     * @return true if this call set the flag, false if a terminal flag was already set
+     */
+    private boolean set(long flag)
+    {
+        while(true)
+        {
+            long s=state.get();
+            if ((s&(COMPLETE|FAILED|CANCELLED))!=0)
+                return false;
+            if (state.compareAndSet(s,s|flag))
+                return true;
+        }
     }
     
     /** Produce an R result from a T item.
@@ -194,66 +260,277 @@ public abstract class IteratingProcessor<T,R> implements Processor<T,R>
         return true;
     }
 
+    /** Produce up to max R results from a T item.
+     * <p>Each result is passed to the sink, which calls {@link Subscriber#onNext(Object)},
+     * and the demand is accounted for all the results at once.  The default implementation
+     * calls {@link #process(Object)}, or {@link #complete()}, until it returns null, the item
+     * {@link #isConsumed(Object) is consumed} or max results have been produced, so that many
+     * results, for example many fields from a buffer, are produced in one call.
+     * @param item The item to process results from, or null if complete
+     * @param sink The sink of the results, that must not be passed more than max results
+     * @param max The number of results that may be produced
+     * @throws RuntimeException if the item cannot be processed, in which case the
+     * publisher is cancelled and the subscriber is failed with the exception
+     */
+    protected void produce(T item, Consumer<? super R> sink, long max)
+    {
+        for (long i=0;i<max;i++)
+        {
+            R result=item==null?complete():process(item);
+            if (result==null)
+                break;
+            sink.accept(result);
+            if (item!=null && isConsumed(item))
+                break;
+        }
+    }
+
+    /** The size of a queued item, used to bound the memory held by prefetched items.
+     * @param item The item
+     * @return the number of remaining bytes of a {@link ByteBuffer}, 0 for other items
+     */
+    protected long sizeOf(T item)
+    {
+        return item instanceof ByteBuffer?((ByteBuffer)item).remaining():0;
+    }
+
+    /** Release a consumed item.
+     * <p>Called once an item has been consumed and removed from the queue.  By default
+     * the item is returned to the publisher's pool if it has one, so implementations
+     * that produce results referring to the item's content should override this method.
+     * @param item The consumed item
+     */
+    protected void release(T item)
+    {
+        ReactiveSupport.release(publisher.get(), item);
+    }
+
+    /** Release a result that the subscriber no longer uses.
+     * <p>The subscription is a {@link PooledSubscription}, so subscribers may release the
+     * results they are passed.  By default nothing is done, so implementations that produce
+     * results from a pool should override this method to return them.
+     * @param result The released result
+     */
+    protected void releaseResult(R result)
+    {
+    }
+
+    /** Release the resources of a processor that is cancelled or fails.
+     * <p>Called once, by the iterating thread, when the subscriber cancels or the processor
+     * fails, including when {@link #produce(Object, Consumer, long)} or {@link #complete()}
+     * throws, but not when the processor completes.  By default nothing is done, so
+     * implementations holding resources such as native inflaters should override this method.
+     */
+    protected void terminate()
+    {
+    }
+
     private void iterate()
     {
-        boolean consumed=false;
+        // Become the iterating thread, or tell the iterating thread to look again
         while(true)
         {
-            T item;
-            try(Locker.Lock l = lock.lock();)
+            long s=state.get();
+            if ((s&ITERATING)==0)
             {
-                iterating = requests>0 && (complete || !queue.isEmpty());
-                if (!iterating)
+                if (state.compareAndSet(s,s|ITERATING))
                     break;
-                item=queue.peek();
+            }
+            else if (state.compareAndSet(s,s|MISSED))
+                return;
+        }
+        
+        while(true)
+        {
+            long s=state.get();
+            if ((s&MISSED)!=0)
+            {
+                state.compareAndSet(s,s&~MISSED);
+                continue;
             }
             
-            R result;
+            // Not connected yet, so connect() will iterate
+            if (connecting.get()<3)
+            {
+                if (idle(s))
+                    return;
+                continue;
+            }
+            Subscriber<? super R> subscriber=this.subscriber.get();
             
-            if (item==null)
+            if ((s&TERMINATED)!=0)
             {
-                result=complete();
-                consumed=false;
+                clear();
+                if (idle(s))
+                    return;
+                continue;
             }
-            else
+            
+            if ((s&(FAILED|CANCELLED))!=0)
             {
-                result=process(item);
-                consumed=isConsumed(item);
+                state.getAndUpdate(v->v|TERMINATED);
+                clear();
+                terminate();
+                if ((s&FAILED)!=0)
+                    subscriber.onError(failure);
+                detach();
+                continue;
             }
             
-            long demand=0;
-            try(Locker.Lock l = lock.lock();)
+            long demand=s&DEMAND;
+            if (demand==0)
             {
-                if (consumed)
-                    queue.pop();
-                
-                if (result!=null)
+                if (idle(s))
+                    return;
+                continue;
+            }
+            
+            if (prefetch>0 && (s&COMPLETE)==0)
+            {
+                long replenish=replenish();
+                if (replenish>0)
                 {
-                    requests--;
+                    requested.addAndGet(replenish);
+                    publisher.get().request(replenish); // may callback onNext(item)
+                    continue;
                 }
-                else if (queue.isEmpty())
+            }
+            
+            T item=queue.peek();
+            if (item!=head)
+            {
+                head=item;
+                headSize=item==null?0:sizeOf(item);
+            }
+            if (item==null && (s&COMPLETE)==0)
+            {
+                // Nothing left to process, so forward any unmet demand
+                long r=requested.get();
+                if (prefetch==0 && demand>r)
                 {
-                    demand=complete?0:(requests-requested);
-                    requested+=demand;
-                    iterating=!complete && demand<=0;
+                    requested.addAndGet(demand-r);
+                    publisher.get().request(demand-r); // may callback onNext(item)
+                    continue;
                 }
-                else
-                    demand=-1;
+                if (idle(s))
+                    return;
+                continue;
             }
             
-            // If we can keep processing call somebody
-            if (result!=null)
-                subscriber.onNext(result); // may callback request(n)
-            else if (demand>0)
-                publisher.request(demand); // may callback onNext(item)
-            else if (demand==0)
+            emitter.reset(subscriber,demand);
+            try
             {
-                if (complete)
-                    subscriber.onComplete();
-                break;
+                produce(item,emitter,demand);
+            }
+            catch(Throwable x)
+            {
+                // The item cannot be processed, so cancel the publisher and fail the subscriber
+                if ((s&COMPLETE)==0)
+                    publisher.get().cancel();
+                failure=x;
+                state.getAndUpdate(v->(v&(FAILED|CANCELLED))!=0?v:v|FAILED);
+                continue;
+            }
+            long produced=emitter.produced;
+            boolean consumed=item!=null && isConsumed(item);
+            
+            if (consumed)
+            {
+                queue.poll();
+                head=null;
+                queuedBytes.addAndGet(-headSize);
+                consumedItems++;
+                release(item);
             }
 
+            if (produced>0)
+            {
+                // Account for the demand of all the results at once
+                while(true)
+                {
+                    long v=state.get();
+                    if ((v&DEMAND)==DEMAND || state.compareAndSet(v,v-produced))
+                        break;
+                }
+            }
+            else if (item==null)
+            {
+                state.getAndUpdate(v->v|TERMINATED);
+                subscriber.onComplete();
+                detach();
+            }
         }
     }
     
+    /**
+     * @return the number of items to request from the publisher to refill the prefetch
+     */
+    private long replenish()
+    {
+        if (!primed)
+        {
+            primed=true;
+            return prefetch;
+        }
+        int limit=prefetch-(prefetch>>2);
+        if (consumedItems>=limit && queuedBytes.get()<maxQueuedBytes)
+        {
+            int replenish=consumedItems;
+            consumedItems=0;
+            return replenish;
+        }
+        return 0;
+    }
+    
+    private void clear()
+    {
+        T item;
+        while ((item=queue.poll())!=null)
+            release(item);
+        head=null;
+        queuedBytes.set(0);
+    }
+    
+    /**
+     * Drops the references to the subscriber once terminated (rule 3.13), keeping a
+     * placeholder so that the processor cannot be subscribed again.
+     */
+    private void detach()
+    {
+        subscriber.set(ReactiveSupport.DETACHED);
+        emitter.reset(null,0);
+    }
+    
+    private boolean idle(long s)
+    {
+        return state.compareAndSet(s,s&~ITERATING);
+    }
+    
+    private class Emitter implements Consumer<R>
+    {
+        private Subscriber<? super R> subscriber;
+        private long max;
+        private long produced;
+
+        private void reset(Subscriber<? super R> subscriber, long max)
+        {
+            this.subscriber=subscriber;
+            this.max=max;
+            this.produced=0;
+        }
+
+        @Override
+        public void accept(R result)
+        {
+            if (result==null)
+                throw new NullPointerException();
+            if (produced>=max)
+                throw new IllegalStateException("demand exceeded");
+            // Drop the rest of a batch once cancelled or failed
+            if ((state.get()&(CANCELLED|FAILED))!=0)
+                return;
+            produced++;
+            subscriber.onNext(result); // may callback request(n)
+        }
+    }
 }
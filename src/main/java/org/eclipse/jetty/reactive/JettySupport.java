@@ -0,0 +1,71 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * The uses of the Jetty server API, which is only present when running in Jetty.
+ * <p>This class is only used once {@link ReactiveSupport#JETTY_SERVER} has found the Jetty
+ * server classes, so that the rest of this package links on any servlet container.</p>
+ */
+class JettySupport
+{
+    private JettySupport()
+    {
+    }
+
+    /**
+     * Writes a buffer with {@link HttpOutput#write(ByteBuffer)}, without copying it to the heap.
+     * @param output the output stream to write to
+     * @param buffer the buffer to write
+     * @return false if the output is not a Jetty output and nothing was written
+     * @throws IOException if the write fails
+     */
+    static boolean write(ServletOutputStream output, ByteBuffer buffer) throws IOException
+    {
+        if (!(output instanceof HttpOutput))
+            return false;
+        ((HttpOutput)output).write(buffer);
+        return true;
+    }
+
+    /**
+     * Aborts the connection of a Jetty request, so that a committed response is not taken
+     * for a complete one.
+     * @param context the async context of the request
+     * @param failure the cause of the abort
+     * @return false if the request is not a Jetty request and nothing was done
+     */
+    static boolean abort(AsyncContext context, Throwable failure)
+    {
+        Request request = Request.getBaseRequest(context.getRequest());
+        if (request == null)
+            return false;
+        request.getHttpChannel().abort(failure);
+        return true;
+    }
+}
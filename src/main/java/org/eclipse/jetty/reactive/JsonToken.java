@@ -0,0 +1,68 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+/**
+ * A token of a JSON document, as produced by {@link JsonTokenProcessor}.
+ * <p>Names, strings and numbers have a value: the unescaped name or string, or the
+ * text of the number.  The other tokens have no value and are shared instances.</p>
+ */
+public class JsonToken
+{
+    public enum Type
+    {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL
+    }
+
+    public static final JsonToken START_OBJECT = new JsonToken(Type.START_OBJECT, null);
+    public static final JsonToken END_OBJECT = new JsonToken(Type.END_OBJECT, null);
+    public static final JsonToken START_ARRAY = new JsonToken(Type.START_ARRAY, null);
+    public static final JsonToken END_ARRAY = new JsonToken(Type.END_ARRAY, null);
+    public static final JsonToken TRUE = new JsonToken(Type.TRUE, null);
+    public static final JsonToken FALSE = new JsonToken(Type.FALSE, null);
+    public static final JsonToken NULL = new JsonToken(Type.NULL, null);
+
+    private final Type type;
+    private final String value;
+
+    JsonToken(Type type, String value)
+    {
+        this.type = type;
+        this.value = value;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return the value of a name, string or number, or null for other tokens
+     */
+    public String getValue()
+    {
+        return value;
+    }
+
+    @Override
+    public String toString()
+    {
+        return value == null ? type.toString() : type + "(" + value + ")";
+    }
+}
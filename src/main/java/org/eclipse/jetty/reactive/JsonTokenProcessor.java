@@ -0,0 +1,437 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.eclipse.jetty.util.Utf8StringBuilder;
+
+/**
+ * A processor that tokenizes a UTF-8 JSON document as it arrives.
+ * <p>Tokens are produced as soon as their last byte is received, and a token split across
+ * buffers is resumed in the next buffer, so a document is never buffered whole.  Only the
+ * name, string or number being received is accumulated, up to the
+ * {@link #setMaxTokenSize(int) maximum token size}.  The structure of the document is
+ * validated as it is tokenized, up to the {@link #setMaxDepth(int) maximum depth} of nesting.</p>
+ * <p>Invalid or truncated documents fail the subscriber with an {@link IllegalStateException}
+ * and cancel the publisher, so an upload can be rejected while it is still arriving.</p>
+ */
+public class JsonTokenProcessor extends IteratingProcessor<ByteBuffer, JsonToken>
+{
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    private enum Expect
+    {
+        VALUE, VALUE_OR_END, NAME, NAME_OR_END, COLON, COMMA_OR_END, DONE
+    }
+
+    private enum Lex
+    {
+        NONE, STRING, ESCAPE, UNICODE, NUMBER, LITERAL
+    }
+
+    private final Utf8StringBuilder text = new Utf8StringBuilder();
+    private int maxTokenSize = 1024 * 1024;
+    private int maxDepth = 256;
+    private Expect expect = Expect.VALUE;
+    private Lex lex = Lex.NONE;
+    // The containers, true for objects and false for arrays
+    private boolean[] containers = new boolean[16];
+    private int depth;
+    private boolean name;
+    private int unicode;
+    private int digits;
+    private byte[] literal;
+    private int matched;
+    private long offset;
+    private boolean consumed;
+
+    public int getMaxTokenSize()
+    {
+        return maxTokenSize;
+    }
+
+    /**
+     * @param maxTokenSize The maximum length of a name, string or number.  Must be set before subscribing.
+     */
+    public void setMaxTokenSize(int maxTokenSize)
+    {
+        this.maxTokenSize = maxTokenSize;
+    }
+
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * @param maxDepth The maximum nesting of objects and arrays.  Must be set before subscribing.
+     */
+    public void setMaxDepth(int maxDepth)
+    {
+        this.maxDepth = maxDepth;
+    }
+
+    @Override
+    protected JsonToken process(ByteBuffer item)
+    {
+        while (item.hasRemaining())
+        {
+            if (lex == Lex.STRING)
+                scanString(item);
+            if (!item.hasRemaining())
+                break;
+
+            consumed = true;
+            JsonToken token = next(item.get(item.position()));
+            if (consumed)
+            {
+                item.position(item.position() + 1);
+                ++offset;
+            }
+            if (token != null)
+                return token;
+        }
+        return null;
+    }
+
+    @Override
+    protected boolean isConsumed(ByteBuffer item)
+    {
+        return !item.hasRemaining();
+    }
+
+    @Override
+    protected JsonToken complete()
+    {
+        // A number at the end of the document has no delimiter
+        if (lex == Lex.NUMBER)
+            return number();
+        if (lex != Lex.NONE || expect != Expect.DONE)
+            throw new IllegalStateException("Truncated JSON at offset " + offset);
+        return null;
+    }
+
+    /**
+     * Appends the bytes of a string up to its end or next escape in bulk.
+     */
+    private void scanString(ByteBuffer item)
+    {
+        int position = item.position();
+        int limit = item.limit();
+        int end = position;
+        while (end < limit)
+        {
+            byte b = item.get(end);
+            if (b == '"' || b == '\\' || (b >= 0 && b < 0x20))
+                break;
+            ++end;
+        }
+        if (end > position)
+        {
+            checkTokenSize(end - position);
+            if (item.hasArray())
+            {
+                text.append(item.array(), item.arrayOffset() + position, end - position);
+            }
+            else
+            {
+                for (int i = position; i < end; ++i)
+                    text.append(item.get(i));
+            }
+            offset += end - position;
+            item.position(end);
+        }
+    }
+
+    private JsonToken next(byte b)
+    {
+        switch (lex)
+        {
+            case STRING:
+                if (b == '"')
+                {
+                    lex = Lex.NONE;
+                    String value = text.toString();
+                    text.reset();
+                    if (name)
+                    {
+                        expect = Expect.COLON;
+                        return new JsonToken(JsonToken.Type.NAME, value);
+                    }
+                    endValue();
+                    return new JsonToken(JsonToken.Type.STRING, value);
+                }
+                if (b == '\\')
+                {
+                    lex = Lex.ESCAPE;
+                    return null;
+                }
+                throw invalid(b);
+
+            case ESCAPE:
+                lex = Lex.STRING;
+                switch (b)
+                {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        append((char)b);
+                        return null;
+                    case 'b':
+                        append('\b');
+                        return null;
+                    case 'f':
+                        append('\f');
+                        return null;
+                    case 'n':
+                        append('\n');
+                        return null;
+                    case 'r':
+                        append('\r');
+                        return null;
+                    case 't':
+                        append('\t');
+                        return null;
+                    case 'u':
+                        lex = Lex.UNICODE;
+                        unicode = 0;
+                        digits = 0;
+                        return null;
+                    default:
+                        throw invalid(b);
+                }
+
+            case UNICODE:
+                int digit = Character.digit(b, 16);
+                if (digit < 0)
+                    throw invalid(b);
+                unicode = (unicode << 4) + digit;
+                if (++digits == 4)
+                {
+                    lex = Lex.STRING;
+                    append((char)unicode);
+                }
+                return null;
+
+            case NUMBER:
+                if (b >= '0' && b <= '9' || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E')
+                {
+                    checkTokenSize(1);
+                    text.append(b);
+                    return null;
+                }
+                // The delimiter is the start of the next token
+                consumed = false;
+                return number();
+
+            case LITERAL:
+                if (b != literal[matched])
+                    throw invalid(b);
+                if (++matched < literal.length)
+                    return null;
+                lex = Lex.NONE;
+                endValue();
+                return literal == TRUE ? JsonToken.TRUE : literal == FALSE ? JsonToken.FALSE : JsonToken.NULL;
+
+            default:
+                return token(b);
+        }
+    }
+
+    private JsonToken token(byte b)
+    {
+        switch (b)
+        {
+            case ' ':
+            case '\t':
+            case '\r':
+            case '\n':
+                return null;
+
+            case '{':
+                startValue(b);
+                push(true);
+                expect = Expect.NAME_OR_END;
+                return JsonToken.START_OBJECT;
+
+            case '[':
+                startValue(b);
+                push(false);
+                expect = Expect.VALUE_OR_END;
+                return JsonToken.START_ARRAY;
+
+            case '}':
+                if (!(expect == Expect.NAME_OR_END || expect == Expect.COMMA_OR_END && containers[depth - 1]))
+                    throw invalid(b);
+                --depth;
+                endValue();
+                return JsonToken.END_OBJECT;
+
+            case ']':
+                if (!(expect == Expect.VALUE_OR_END || expect == Expect.COMMA_OR_END && !containers[depth - 1]))
+                    throw invalid(b);
+                --depth;
+                endValue();
+                return JsonToken.END_ARRAY;
+
+            case ',':
+                if (expect != Expect.COMMA_OR_END)
+                    throw invalid(b);
+                expect = containers[depth - 1] ? Expect.NAME : Expect.VALUE;
+                return null;
+
+            case ':':
+                if (expect != Expect.COLON)
+                    throw invalid(b);
+                expect = Expect.VALUE;
+                return null;
+
+            case '"':
+                name = expect == Expect.NAME || expect == Expect.NAME_OR_END;
+                if (!name)
+                    startValue(b);
+                lex = Lex.STRING;
+                return null;
+
+            case 't':
+                return literal(b, TRUE);
+
+            case 'f':
+                return literal(b, FALSE);
+
+            case 'n':
+                return literal(b, NULL);
+
+            default:
+                if (b != '-' && (b < '0' || b > '9'))
+                    throw invalid(b);
+                startValue(b);
+                lex = Lex.NUMBER;
+                text.append(b);
+                return null;
+        }
+    }
+
+    private JsonToken literal(byte b, byte[] literal)
+    {
+        startValue(b);
+        lex = Lex.LITERAL;
+        this.literal = literal;
+        matched = 1;
+        return null;
+    }
+
+    private JsonToken number()
+    {
+        lex = Lex.NONE;
+        String value = text.toString();
+        text.reset();
+        if (!isNumber(value))
+            throw new IllegalStateException("Invalid JSON number " + value + " at offset " + offset);
+        endValue();
+        return new JsonToken(JsonToken.Type.NUMBER, value);
+    }
+
+    /**
+     * @return whether the text matches {@code -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?}
+     */
+    private static boolean isNumber(String value)
+    {
+        int i = 0;
+        int length = value.length();
+        if (i < length && value.charAt(i) == '-')
+            ++i;
+        if (i == length)
+            return false;
+        if (value.charAt(i) == '0')
+            ++i;
+        else
+            i = digits(value, i);
+        if (i < 0)
+            return false;
+        if (i < length && value.charAt(i) == '.')
+        {
+            i = digits(value, i + 1);
+            if (i < 0)
+                return false;
+        }
+        if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E'))
+        {
+            ++i;
+            if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-'))
+                ++i;
+            i = digits(value, i);
+            if (i < 0)
+                return false;
+        }
+        return i == length;
+    }
+
+    /**
+     * @return the index after one or more digits, or -1 if there are none
+     */
+    private static int digits(String value, int i)
+    {
+        int start = i;
+        while (i < value.length() && value.charAt(i) >= '0' && value.charAt(i) <= '9')
+            ++i;
+        return i > start ? i : -1;
+    }
+
+    private void startValue(byte b)
+    {
+        if (expect != Expect.VALUE && expect != Expect.VALUE_OR_END)
+            throw invalid(b);
+    }
+
+    private void endValue()
+    {
+        expect = depth == 0 ? Expect.DONE : Expect.COMMA_OR_END;
+    }
+
+    private void push(boolean object)
+    {
+        if (depth == maxDepth)
+            throw new IllegalStateException("JSON nested deeper than " + maxDepth + " at offset " + offset);
+        if (depth == containers.length)
+            containers = Arrays.copyOf(containers, depth * 2);
+        containers[depth++] = object;
+    }
+
+    private void append(char c)
+    {
+        checkTokenSize(1);
+        text.append(c);
+    }
+
+    private void checkTokenSize(int length)
+    {
+        if (text.length() + length > maxTokenSize)
+            throw new IllegalStateException("JSON token larger than " + maxTokenSize + " at offset " + offset);
+    }
+
+    private IllegalStateException invalid(byte b)
+    {
+        return new IllegalStateException("Invalid JSON character 0x" + Integer.toHexString(b & 0xFF) + " at offset " + offset);
+    }
+}
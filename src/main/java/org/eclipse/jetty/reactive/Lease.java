@@ -0,0 +1,133 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.eclipse.jetty.util.thread.Locker;
+
+/**
+ * A reference counted lease of a pooled buffer.
+ * <p>The buffer is released once its holder and every subscriber passed a slice or view of it
+ * have released their reference.  A lease starts with one reference, for its holder.</p>
+ */
+class Lease
+{
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final ByteBuffer buffer;
+    private final Consumer<ByteBuffer> releaser;
+
+    /**
+     * @param buffer the leased buffer
+     * @param releaser releases the buffer to its pool once the last reference is released
+     */
+    Lease(ByteBuffer buffer, Consumer<ByteBuffer> releaser)
+    {
+        this.buffer = buffer;
+        this.releaser = releaser;
+    }
+
+    ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    void retain()
+    {
+        references.incrementAndGet();
+    }
+
+    void release()
+    {
+        if (references.decrementAndGet() == 0)
+            releaser.accept(buffer);
+    }
+
+    /**
+     * The slices of leased buffers passed to a subscriber, so that they can be released by identity.
+     * <p>Only the most recent slices are tracked, so a subscriber that does not release them does
+     * not cause the buffers to be retained: the lease of a forgotten slice is never released, and
+     * its buffer is simply garbage collected rather than reused.</p>
+     */
+    static class Slices
+    {
+        private static final int MAX_RETAINED = 64;
+
+        private final Locker lock = new Locker();
+        private final Deque<Slice> slices = new ArrayDeque<>();
+
+        /**
+         * @param slice a slice of the leased buffer passed to the subscriber
+         * @param lease the lease, of which the slice holds a reference already retained
+         */
+        void add(ByteBuffer slice, Lease lease)
+        {
+            try (Locker.Lock l = lock.lock())
+            {
+                // Forget the oldest slice, whose buffer will then not be reused
+                if (slices.size() == MAX_RETAINED)
+                    slices.removeFirst();
+                slices.addLast(new Slice(slice, lease));
+            }
+        }
+
+        /**
+         * @param slice a slice released by the subscriber
+         * @return true if the slice was tracked and the reference it holds released
+         */
+        boolean release(ByteBuffer slice)
+        {
+            Lease lease = null;
+            try (Locker.Lock l = lock.lock())
+            {
+                for (Iterator<Slice> i = slices.iterator(); i.hasNext();)
+                {
+                    Slice s = i.next();
+                    if (s.slice == slice)
+                    {
+                        i.remove();
+                        lease = s.lease;
+                        break;
+                    }
+                }
+            }
+            if (lease == null)
+                return false;
+            lease.release();
+            return true;
+        }
+    }
+
+    private static class Slice
+    {
+        private final ByteBuffer slice;
+        private final Lease lease;
+
+        private Slice(ByteBuffer slice, Lease lease)
+        {
+            this.slice = slice;
+            this.lease = lease;
+        }
+    }
+}
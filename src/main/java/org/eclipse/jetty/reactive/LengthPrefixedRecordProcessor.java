@@ -0,0 +1,93 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A processor that frames content into records each preceded by its length.
+ * <p>The length is an unsigned big endian integer of 1, 2 or 4 bytes, that does not count
+ * the prefix itself.  The prefix is not part of the records.  A length larger than the
+ * {@link #setMaxRecordSize(int) maximum record size} fails the subscriber as soon as it is
+ * read, before the record content is received.  Content that ends within a record fails the
+ * subscriber with an {@link IllegalStateException}.</p>
+ */
+public class LengthPrefixedRecordProcessor extends RecordProcessor
+{
+    private final int prefixSize;
+    private int prefixed;
+    private long prefix;
+    private long length = -1;
+
+    public LengthPrefixedRecordProcessor()
+    {
+        this(4);
+    }
+
+    /**
+     * @param prefixSize the size in bytes of the length prefix, 1, 2 or 4
+     */
+    public LengthPrefixedRecordProcessor(int prefixSize)
+    {
+        if (prefixSize != 1 && prefixSize != 2 && prefixSize != 4)
+            throw new IllegalArgumentException("Invalid prefix size " + prefixSize);
+        this.prefixSize = prefixSize;
+    }
+
+    @Override
+    protected int frame(ByteBuffer item, int framed)
+    {
+        if (length < 0)
+        {
+            // Read the prefix, which may span items
+            while (prefixed < prefixSize)
+            {
+                if (!item.hasRemaining())
+                    return -1;
+                prefix = (prefix << 8) | (item.get() & 0xFF);
+                ++prefixed;
+            }
+            if (prefix > getMaxRecordSize())
+                throw new IllegalStateException("Record larger than " + getMaxRecordSize());
+            length = prefix;
+            prefix = 0;
+            prefixed = 0;
+        }
+
+        long end = item.position() + length - framed;
+        if (end > item.limit())
+            return -1;
+        length = -1;
+        return (int)end;
+    }
+
+    @Override
+    protected int trailer()
+    {
+        return 0;
+    }
+
+    @Override
+    protected ByteBuffer last(ByteBuffer record)
+    {
+        if (record != null || prefixed > 0 || length >= 0)
+            throw new IllegalStateException("Truncated record");
+        return null;
+    }
+}
@@ -0,0 +1,843 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.eclipse.jetty.util.Fields;
+import org.eclipse.jetty.util.QuotedStringTokenizer;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.Locker;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A processor that converts {@code multipart/form-data} content to a stream of {@link Part}s.
+ * <p>Each part has its headers and is itself a {@link Publisher} of its content, so a part of
+ * any size can be consumed with back pressure: the next buffer is only requested from upstream
+ * once the part's subscriber has demand for it.  The content of a part is published as slices
+ * of the upstream buffers, without copying.  An upstream buffer is released to its pool once the
+ * processor has scanned it and the part's subscriber has {@link PooledSubscription#release(Object)
+ * released} all the slices of it.  Only the most recent slices are tracked, so a subscriber that
+ * does not release them does not cause the buffers to be retained.</p>
+ * <p>The boundaries are found with a Boyer-Moore-Horspool search.  A boundary that spans buffers
+ * is matched across them: as the boundary may not contain a {@code CR}, the only partial match at
+ * the end of a buffer is the one starting at its last {@code CR}.</p>
+ * <p>A part that is cancelled has the rest of its content skipped.  Cancelling the processor
+ * stops it from publishing more parts, once the current part has been read.  Malformed content
+ * fails the current part and the subscriber with an {@link IllegalStateException} and cancels
+ * the publisher.</p>
+ */
+public class MultiPartProcessor implements Processor<ByteBuffer, MultiPartProcessor.Part>
+{
+    private static final Logger LOG = Log.getLogger(MultiPartProcessor.class);
+
+    private enum State
+    {
+        PREAMBLE, DELIMITER, HEADERS, BODY, EPILOGUE, END
+    }
+
+    private final Locker lock = new Locker();
+    private final Lease.Slices slices = new Lease.Slices();
+    private final byte[] delimiter;
+    private final int[] shifts = new int[256];
+    private int maxHeaderSize = 8 * 1024;
+    // Guarded by the lock
+    private Subscription upstream;
+    private Subscriber<? super Part> subscriber;
+    private boolean connected;
+    private long demand;
+    private boolean cancelled;
+    private Lease current;
+    private boolean requested;
+    private boolean complete;
+    private Throwable failure;
+    private boolean iterating;
+    private boolean again;
+    // Only used by the iterating thread
+    private State state = State.PREAMBLE;
+    private int matched;
+    private boolean dash;
+    private byte[] line = new byte[128];
+    private int lineLength;
+    private int headerSize;
+    private Fields headers;
+    private Part part;
+
+    /**
+     * @param contentType the {@code Content-Type} of the content, with its {@code boundary} parameter
+     * @throws IllegalArgumentException if the content type has no valid boundary
+     */
+    public MultiPartProcessor(String contentType)
+    {
+        String boundary = null;
+        QuotedStringTokenizer tokens = new QuotedStringTokenizer(contentType, ";", false, true);
+        while (tokens.hasMoreTokens())
+        {
+            String token = tokens.nextToken().trim();
+            if (token.regionMatches(true, 0, "boundary=", 0, 9))
+                boundary = QuotedStringTokenizer.unquoteOnly(token.substring(9).trim());
+        }
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 70 || boundary.indexOf('\r') >= 0 || boundary.indexOf('\n') >= 0)
+            throw new IllegalArgumentException("Invalid multipart boundary in " + contentType);
+
+        delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        int last = delimiter.length - 1;
+        Arrays.fill(shifts, delimiter.length);
+        for (int i = 0; i < last; ++i)
+            shifts[delimiter[i] & 0xFF] = last - i;
+        // The first delimiter may be at the very start of the content, without a CRLF
+        matched = 2;
+    }
+
+    public int getMaxHeaderSize()
+    {
+        return maxHeaderSize;
+    }
+
+    /**
+     * @param maxHeaderSize The maximum size of the headers of a part.  Must be set before subscribing.
+     */
+    public void setMaxHeaderSize(int maxHeaderSize)
+    {
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription)
+    {
+        Subscriber<? super Part> subscriber;
+        try (Locker.Lock l = lock.lock())
+        {
+            upstream = Objects.requireNonNull(subscription);
+            subscriber = this.subscriber;
+        }
+        if (subscriber != null)
+            connect(subscriber);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Part> subscriber)
+    {
+        Objects.requireNonNull(subscriber);
+        boolean connect;
+        try (Locker.Lock l = lock.lock())
+        {
+            if (this.subscriber != null)
+                throw new IllegalStateException("already subscribed");
+            this.subscriber = subscriber;
+            connect = upstream != null;
+        }
+        if (connect)
+            connect(subscriber);
+    }
+
+    private void connect(Subscriber<? super Part> subscriber)
+    {
+        subscriber.onSubscribe(new Subscription()
+        {
+            @Override
+            public void request(long n)
+            {
+                if (n <= 0)
+                {
+                    abort(new IllegalArgumentException("Rule 3.9: request " + n));
+                    return;
+                }
+                try (Locker.Lock l = lock.lock())
+                {
+                    demand += n;
+                    if (demand < 0)
+                        demand = Long.MAX_VALUE;
+                }
+                iterate();
+            }
+
+            @Override
+            public void cancel()
+            {
+                try (Locker.Lock l = lock.lock())
+                {
+                    cancelled = true;
+                }
+                iterate();
+            }
+        });
+        try (Locker.Lock l = lock.lock())
+        {
+            connected = true;
+        }
+        iterate();
+    }
+
+    @Override
+    public void onNext(ByteBuffer item)
+    {
+        Objects.requireNonNull(item);
+        try (Locker.Lock l = lock.lock())
+        {
+            current = new Lease(item, buffer -> ReactiveSupport.release(upstream, buffer));
+            requested = false;
+        }
+        iterate();
+    }
+
+    @Override
+    public void onError(Throwable failure)
+    {
+        Objects.requireNonNull(failure);
+        try (Locker.Lock l = lock.lock())
+        {
+            if (this.failure == null)
+                this.failure = failure;
+        }
+        iterate();
+    }
+
+    @Override
+    public void onComplete()
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            complete = true;
+        }
+        iterate();
+    }
+
+    private void abort(Throwable failure)
+    {
+        boolean cancel;
+        try (Locker.Lock l = lock.lock())
+        {
+            if (this.failure == null)
+                this.failure = failure;
+            cancel = !complete;
+            complete = true;
+        }
+        if (cancel)
+            upstream.cancel();
+        iterate();
+    }
+
+    /**
+     * Stops after a callback has thrown, cancelling the publisher and failing the current part,
+     * without signalling the subscriber again (rule 2.13).
+     * @param failure the exception thrown by the callback
+     */
+    private void fail(Throwable failure)
+    {
+        if (LOG.isDebugEnabled())
+            LOG.debug(failure);
+        boolean cancel;
+        try (Locker.Lock l = lock.lock())
+        {
+            if (this.failure == null)
+                this.failure = failure;
+            cancelled = true;
+            cancel = !complete;
+            complete = true;
+        }
+        if (cancel)
+            upstream.cancel();
+    }
+
+    private void iterate()
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (iterating)
+            {
+                again = true;
+                return;
+            }
+            iterating = true;
+        }
+
+        while (true)
+        {
+            boolean progress;
+            try
+            {
+                progress = step();
+            }
+            catch (BadMultiPartException x)
+            {
+                abort(x);
+                progress = true;
+            }
+            catch (Throwable x)
+            {
+                // A subscriber or the publisher threw from a callback
+                fail(x);
+                progress = true;
+            }
+
+            try (Locker.Lock l = lock.lock())
+            {
+                if (!progress && !again)
+                {
+                    iterating = false;
+                    return;
+                }
+                again = false;
+            }
+        }
+    }
+
+    /**
+     * @return true if progress was made, false if waiting for a signal
+     */
+    private boolean step()
+    {
+        if (state == State.END)
+            return false;
+
+        Subscriber<? super Part> subscriber;
+        boolean cancelled;
+        long demand;
+        Lease current;
+        boolean complete;
+        Throwable failure;
+        try (Locker.Lock l = lock.lock())
+        {
+            if (!connected)
+                return false;
+            subscriber = this.subscriber;
+            cancelled = this.cancelled;
+            demand = this.demand;
+            current = this.current;
+            complete = this.complete;
+            failure = this.failure;
+        }
+
+        if (failure != null)
+        {
+            end(current);
+            if (part != null)
+                part.fail(failure);
+            if (!cancelled)
+                subscriber.onError(failure);
+            return false;
+        }
+
+        if (state == State.BODY)
+        {
+            part.notifyInvalid();
+            if (!part.isReady())
+                return false;
+        }
+        else if (cancelled)
+        {
+            // No more parts are wanted
+            end(current);
+            if (!complete)
+                upstream.cancel();
+            return false;
+        }
+        else if (demand == 0 && state != State.EPILOGUE)
+        {
+            return false;
+        }
+
+        if (current == null || !current.getBuffer().hasRemaining())
+        {
+            if (current != null)
+            {
+                try (Locker.Lock l = lock.lock())
+                {
+                    this.current = null;
+                }
+                current.release();
+            }
+
+            if (complete)
+            {
+                if (state != State.EPILOGUE)
+                    throw new BadMultiPartException("Incomplete multipart content");
+                end(null);
+                subscriber.onComplete();
+                return false;
+            }
+
+            try (Locker.Lock l = lock.lock())
+            {
+                if (requested)
+                    return false;
+                requested = true;
+            }
+            upstream.request(1); // may callback onNext(item)
+            return true;
+        }
+
+        ByteBuffer buffer = current.getBuffer();
+        switch (state)
+        {
+            case PREAMBLE:
+                if (delimit(current, null))
+                    state = State.DELIMITER;
+                break;
+
+            case DELIMITER:
+                parseDelimiter(buffer);
+                break;
+
+            case HEADERS:
+                parseHeaders(buffer);
+                break;
+
+            case BODY:
+                if (delimit(current, part))
+                {
+                    Part part = this.part;
+                    this.part = null;
+                    state = State.DELIMITER;
+                    part.complete();
+                }
+                break;
+
+            case EPILOGUE:
+                buffer.position(buffer.limit());
+                break;
+
+            default:
+                throw new IllegalStateException(state.toString());
+        }
+        return true;
+    }
+
+    private void end(Lease current)
+    {
+        state = State.END;
+        if (current != null)
+        {
+            try (Locker.Lock l = lock.lock())
+            {
+                this.current = null;
+            }
+            current.release();
+        }
+    }
+
+    /**
+     * Scans for the delimiter, publishing the content before it to the part.
+     * @param lease the lease of the buffer to scan
+     * @param part the part to publish the content to, or null to skip it
+     * @return true if the delimiter was found
+     */
+    private boolean delimit(Lease lease, Part part)
+    {
+        ByteBuffer buffer = lease.getBuffer();
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        if (matched > 0)
+        {
+            // Continue a partial match from the previous buffer
+            int length = 0;
+            while (matched + length < delimiter.length && position + length < limit && buffer.get(position + length) == delimiter[matched + length])
+                ++length;
+
+            if (matched + length == delimiter.length)
+            {
+                matched = 0;
+                buffer.position(position + length);
+                return true;
+            }
+            if (position + length == limit)
+            {
+                matched += length;
+                buffer.position(limit);
+                return false;
+            }
+
+            // Not a delimiter after all, so the bytes held back are content
+            int held = matched;
+            matched = 0;
+            if (part != null)
+                part.publish(ByteBuffer.wrap(delimiter, 0, held).asReadOnlyBuffer(), null);
+            return false;
+        }
+
+        int found = search(buffer, position, limit);
+        int end = found >= 0 ? found : partial(buffer, position, limit);
+        if (end > position && part != null)
+        {
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(end).position(position);
+            part.publish(slice.slice(), lease);
+        }
+
+        if (found >= 0)
+        {
+            buffer.position(found + delimiter.length);
+            return true;
+        }
+        matched = limit - end;
+        buffer.position(limit);
+        return false;
+    }
+
+    /**
+     * @return the index of the delimiter in the buffer, or -1 if not found
+     */
+    private int search(ByteBuffer buffer, int from, int to)
+    {
+        int last = delimiter.length - 1;
+        int i = from;
+        while (i + last < to)
+        {
+            int j = last;
+            while (buffer.get(i + j) == delimiter[j])
+            {
+                if (j == 0)
+                    return i;
+                --j;
+            }
+            i += shifts[buffer.get(i + last) & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of a partial delimiter at the end of the buffer, or the limit if there is none
+     */
+    private int partial(ByteBuffer buffer, int from, int to)
+    {
+        for (int i = Math.max(from, to - delimiter.length + 1); i < to; ++i)
+        {
+            if (buffer.get(i) != '\r')
+                continue;
+            int j = 1;
+            while (i + j < to && buffer.get(i + j) == delimiter[j])
+                ++j;
+            if (i + j == to)
+                return i;
+        }
+        return to;
+    }
+
+    private void parseDelimiter(ByteBuffer buffer)
+    {
+        while (buffer.hasRemaining())
+        {
+            byte b = buffer.get();
+            if (dash)
+            {
+                if (b != '-')
+                    throw new BadMultiPartException("Invalid multipart delimiter");
+                state = State.EPILOGUE;
+                return;
+            }
+            if (b == '-')
+            {
+                dash = true;
+            }
+            else if (b == '\n')
+            {
+                state = State.HEADERS;
+                headers = new Fields(false);
+                headerSize = 0;
+                return;
+            }
+            else if (b != '\r' && b != ' ' && b != '\t')
+            {
+                throw new BadMultiPartException("Invalid multipart delimiter");
+            }
+        }
+    }
+
+    private void parseHeaders(ByteBuffer buffer)
+    {
+        while (buffer.hasRemaining())
+        {
+            byte b = buffer.get();
+            if (++headerSize > maxHeaderSize)
+                throw new BadMultiPartException("Multipart headers are larger than " + maxHeaderSize);
+
+            if (b != '\n')
+            {
+                if (lineLength == line.length)
+                    line = Arrays.copyOf(line, line.length * 2);
+                line[lineLength++] = b;
+                continue;
+            }
+
+            int length = lineLength;
+            lineLength = 0;
+            if (length > 0 && line[length - 1] == '\r')
+                --length;
+
+            if (length == 0)
+            {
+                // The blank line ends the headers
+                part = new Part(headers);
+                headers = null;
+                dash = false;
+                state = State.BODY;
+                try (Locker.Lock l = lock.lock())
+                {
+                    --demand;
+                }
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Next: {}", part);
+                subscriber.onNext(part); // may callback request(n)
+                return;
+            }
+
+            String header = new String(line, 0, length, StandardCharsets.UTF_8);
+            int colon = header.indexOf(':');
+            if (colon <= 0)
+                throw new BadMultiPartException("Invalid multipart header");
+            headers.add(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+        }
+    }
+
+    /**
+     * The content is not valid multipart content.
+     */
+    private static class BadMultiPartException extends IllegalStateException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private BadMultiPartException(String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * A part of the multipart content, with its headers, that publishes its content.
+     * <p>The subscription of the part is a {@link PooledSubscription}: once a subscriber has
+     * finished with a buffer it may release it, so that the upstream buffer it is a slice of
+     * can be reused.</p>
+     */
+    public class Part implements Publisher<ByteBuffer>
+    {
+        private final Fields headers;
+        // Guarded by the lock
+        private Subscriber<? super ByteBuffer> subscriber;
+        private boolean subscribed;
+        private long demand;
+        private boolean cancelled;
+        private Throwable failure;
+        private Throwable invalid;
+
+        private Part(Fields headers)
+        {
+            this.headers = headers;
+        }
+
+        public Fields getHeaders()
+        {
+            return headers;
+        }
+
+        public String getHeader(String name)
+        {
+            Fields.Field field = headers.get(name);
+            return field == null ? null : field.getValue();
+        }
+
+        public String getContentType()
+        {
+            return getHeader("Content-Type");
+        }
+
+        /**
+         * @return the name of the form field, from the {@code Content-Disposition} header
+         */
+        public String getName()
+        {
+            return getDispositionParameter("name");
+        }
+
+        /**
+         * @return the name of the uploaded file, from the {@code Content-Disposition} header
+         */
+        public String getFileName()
+        {
+            return getDispositionParameter("filename");
+        }
+
+        private String getDispositionParameter(String name)
+        {
+            String disposition = getHeader("Content-Disposition");
+            if (disposition == null)
+                return null;
+            QuotedStringTokenizer tokens = new QuotedStringTokenizer(disposition, ";", false, true);
+            while (tokens.hasMoreTokens())
+            {
+                String token = tokens.nextToken().trim();
+                int equals = token.indexOf('=');
+                if (equals > 0 && token.substring(0, equals).trim().equalsIgnoreCase(name))
+                    return QuotedStringTokenizer.unquoteOnly(token.substring(equals + 1).trim());
+            }
+            return null;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super ByteBuffer> subscriber)
+        {
+            Objects.requireNonNull(subscriber);
+            try (Locker.Lock l = lock.lock())
+            {
+                if (this.subscriber != null)
+                    throw new IllegalStateException("already subscribed");
+                this.subscriber = subscriber;
+            }
+
+            subscriber.onSubscribe(new PooledSubscription<ByteBuffer>()
+            {
+                @Override
+                public void request(long n)
+                {
+                    try (Locker.Lock l = lock.lock())
+                    {
+                        if (n <= 0)
+                        {
+                            // Skip the rest of the part, and signal the failure from the iteration
+                            if (!cancelled)
+                                invalid = new IllegalArgumentException("Rule 3.9: request " + n);
+                            cancelled = true;
+                        }
+                        else
+                        {
+                            demand += n;
+                            if (demand < 0)
+                                demand = Long.MAX_VALUE;
+                        }
+                    }
+                    iterate();
+                }
+
+                @Override
+                public void cancel()
+                {
+                    try (Locker.Lock l = lock.lock())
+                    {
+                        cancelled = true;
+                    }
+                    iterate();
+                }
+
+                @Override
+                public void release(ByteBuffer buffer)
+                {
+                    slices.release(buffer);
+                }
+            });
+
+            // The processor may have failed before the part was subscribed to
+            Throwable failure;
+            try (Locker.Lock l = lock.lock())
+            {
+                subscribed = true;
+                failure = this.failure;
+            }
+            if (failure != null)
+                subscriber.onError(failure);
+        }
+
+        /**
+         * @return true if the content can be published or skipped
+         */
+        private boolean isReady()
+        {
+            try (Locker.Lock l = lock.lock())
+            {
+                return cancelled || subscriber != null && demand > 0;
+            }
+        }
+
+        private boolean isCancelled()
+        {
+            try (Locker.Lock l = lock.lock())
+            {
+                return cancelled;
+            }
+        }
+
+        private void publish(ByteBuffer content, Lease lease)
+        {
+            Subscriber<? super ByteBuffer> subscriber;
+            try (Locker.Lock l = lock.lock())
+            {
+                if (cancelled)
+                    return;
+                --demand;
+                subscriber = this.subscriber;
+            }
+            if (lease != null)
+            {
+                lease.retain();
+                slices.add(content, lease);
+            }
+            subscriber.onNext(content); // may callback request(n)
+        }
+
+        /**
+         * Signals an invalid request of the subscriber, from the iteration so that it does not
+         * race onNext() (rule 1.3).
+         * @return true if the subscriber was failed
+         */
+        private boolean notifyInvalid()
+        {
+            Throwable invalid;
+            try (Locker.Lock l = lock.lock())
+            {
+                invalid = this.invalid;
+                this.invalid = null;
+            }
+            if (invalid == null)
+                return false;
+            subscriber.onError(invalid);
+            return true;
+        }
+
+        private void complete()
+        {
+            if (!notifyInvalid() && !isCancelled())
+                subscriber.onComplete();
+        }
+
+        private void fail(Throwable failure)
+        {
+            Subscriber<? super ByteBuffer> subscriber;
+            try (Locker.Lock l = lock.lock())
+            {
+                this.failure = failure;
+                subscriber = subscribed ? this.subscriber : null;
+            }
+            if (subscriber != null && !notifyInvalid() && !isCancelled())
+                subscriber.onError(failure);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s@%x[%s]", getClass().getSimpleName(), hashCode(), headers);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+import org.reactivestreams.Subscriber;
+
+/**
+ * A processor that maps items concurrently on an {@link Executor} and publishes the results
+ * in the order of the items.
+ * <p>Up to the parallelism items are mapped at once.  Each result is held in the slot of its
+ * item until the results of all the previous items have been published, so at most the
+ * parallelism results are held whatever order the mappings complete in.  An item is requested
+ * from the publisher only when the result in its slot has been published.</p>
+ * <p>The function must not keep a reference to the item, which is released to the publisher
+ * once mapped.  If the function throws, or returns null, the publisher is cancelled and the
+ * subscriber is failed once the results of the previous items have been published.</p>
+ *
+ * @param <T> the type of the items
+ * @param <R> the type of the results
+ */
+public class ParallelMapProcessor<T, R> extends AsyncBoundaryProcessor<T, R>
+{
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Executor executor;
+    private final Function<? super T, ? extends R> function;
+    private final int parallelism;
+    private final AtomicReferenceArray<Object> slots;
+    private long submitted;
+    private long published;
+
+    /**
+     * @param executor the executor to map the items on
+     * @param function the function that maps an item to its result
+     * @param parallelism the maximum number of items mapped at once
+     */
+    public ParallelMapProcessor(Executor executor, Function<? super T, ? extends R> function, int parallelism)
+    {
+        super(parallelism);
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Invalid parallelism " + parallelism);
+        this.executor = executor;
+        this.function = function;
+        this.parallelism = parallelism;
+        this.slots = new AtomicReferenceArray<>(parallelism);
+    }
+
+    @Override
+    void next(T item)
+    {
+        if (inFlight.incrementAndGet() > parallelism)
+        {
+            inFlight.decrementAndGet();
+            release(item);
+            invalidate(new IllegalStateException("unrequested item"));
+            return;
+        }
+
+        int slot = (int)(submitted++ % parallelism);
+        try
+        {
+            executor.execute(() -> map(item, slot));
+        }
+        catch (RejectedExecutionException x)
+        {
+            release(item);
+            slots.set(slot, new Failure(x));
+            schedule();
+        }
+    }
+
+    private void map(T item, int slot)
+    {
+        Object result;
+        try
+        {
+            result = function.apply(item);
+            if (result == null)
+                throw new NullPointerException("null result");
+        }
+        catch (Throwable x)
+        {
+            result = new Failure(x);
+        }
+        release(item);
+        slots.set(slot, result);
+        schedule();
+    }
+
+    @Override
+    void dispatch()
+    {
+        // Publish from the thread of the signal
+        drain();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    boolean emit(Subscriber<? super R> subscriber)
+    {
+        long requested = requested();
+        long emitted = 0;
+        while (true)
+        {
+            if (terminal(subscriber))
+                return false;
+
+            int slot = (int)(published % parallelism);
+            Object result = slots.get(slot);
+            if (result == null || emitted == requested)
+                break;
+            if (result instanceof Failure)
+            {
+                upstream().cancel();
+                terminate();
+                subscriber.onError(((Failure)result).cause);
+                return false;
+            }
+
+            slots.set(slot, null);
+            ++published;
+            ++emitted;
+            inFlight.decrementAndGet();
+            subscriber.onNext((R)result); // may callback request(n)
+        }
+
+        if (emitted > 0)
+        {
+            emitted(requested, emitted);
+            // Refill the freed slots
+            if (!isDone())
+                upstream().request(emitted);
+        }
+        return false;
+    }
+
+    @Override
+    boolean isEmpty()
+    {
+        return inFlight.get() == 0;
+    }
+
+    private static class Failure
+    {
+        private final Throwable cause;
+
+        private Failure(Throwable cause)
+        {
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A {@link Subscription} to a publisher of pooled items.
+ * <p>Items passed to {@link Subscriber#onNext(Object)} are leased to the subscriber,
+ * which may hold them across subsequent calls to {@link #request(long)} without
+ * copying. Once an item is no longer needed it should be passed to {@link #release(Object)}
+ * so that it can be returned to its pool. Items that are never released are simply
+ * garbage collected.</p>
+ *
+ * @param <T> the type of the pooled items
+ * @see ReactiveSupport#release(Subscription, Object)
+ */
+public interface PooledSubscription<T> extends Subscription
+{
+    /**
+     * @param item an item previously received from this subscription, that the subscriber no longer uses
+     */
+    void release(T item);
+}
@@ -22,28 +22,213 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.reactivestreams.Processor;
 import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 public class ReactiveSupport
 {
     private static final String PUBLISHER_ATTRIBUTE = "org.eclipse.jetty.reactive.publisher";
+    private static final ByteBufferPool POOL = new ArrayByteBufferPool();
+
+    /**
+     * The global upper bound for the size of request content buffers, which bounds the
+     * memory held per request. Configured by the {@code org.eclipse.jetty.reactive.maxBufferSize}
+     * system property.
+     */
+    public static final int MAX_BUFFER_SIZE = Integer.getInteger("org.eclipse.jetty.reactive.maxBufferSize", 64 * 1024);
+    public static final int MIN_BUFFER_SIZE = Math.min(1024, MAX_BUFFER_SIZE);
+
+    /**
+     * Whether request content with a {@code gzip} or {@code deflate} {@code Content-Encoding} is
+     * inflated by the publisher when not asked for with {@link #getPublisher(AsyncContext, boolean)}.
+     * Configured by the {@code org.eclipse.jetty.reactive.inflateContent} system property, false
+     * by default, since the request headers still describe the compressed content.
+     */
+    public static final boolean INFLATE_CONTENT = Boolean.getBoolean("org.eclipse.jetty.reactive.inflateContent");
+
+    /**
+     * Whether the Jetty server classes are present, so that {@link JettySupport} may be used.
+     */
+    static final boolean JETTY_SERVER = isPresent("org.eclipse.jetty.server.HttpOutput");
+
+    /**
+     * A subscriber that ignores all signals, held by processors in place of their subscriber
+     * once terminated so that they do not keep a reference to it (rule 3.13).
+     */
+    static final Subscriber<Object> DETACHED = new Subscriber<Object>()
+    {
+        @Override
+        public void onSubscribe(Subscription subscription)
+        {
+        }
+
+        @Override
+        public void onNext(Object item)
+        {
+        }
+
+        @Override
+        public void onError(Throwable failure)
+        {
+        }
+
+        @Override
+        public void onComplete()
+        {
+        }
+    };
 
     private ReactiveSupport()
     {
     }
 
     public static Publisher<ByteBuffer> getPublisher(AsyncContext context) throws IOException
+    {
+        return getPublisher(context, POOL);
+    }
+
+    /**
+     * @param context the async context of the request
+     * @param inflate whether content with a {@code gzip} or {@code deflate} {@code Content-Encoding}
+     * is inflated, if the publisher of the request has not been obtained already
+     * @return the publisher of the request content
+     * @throws IOException if the request input stream cannot be obtained
+     */
+    public static Publisher<ByteBuffer> getPublisher(AsyncContext context, boolean inflate) throws IOException
+    {
+        return getPublisher(context, POOL, MIN_BUFFER_SIZE, MAX_BUFFER_SIZE, inflate);
+    }
+
+    public static Publisher<ByteBuffer> getPublisher(AsyncContext context, ByteBufferPool pool) throws IOException
+    {
+        return getPublisher(context, pool, MIN_BUFFER_SIZE, MAX_BUFFER_SIZE);
+    }
+
+    public static Publisher<ByteBuffer> getPublisher(AsyncContext context, ByteBufferPool pool, int minBufferSize, int maxBufferSize) throws IOException
+    {
+        return getPublisher(context, pool, minBufferSize, maxBufferSize, INFLATE_CONTENT);
+    }
+
+    /**
+     * @param context the async context of the request
+     * @param pool the pool to lease the content buffers from
+     * @param minBufferSize the size to start from when the content length is unknown
+     * @param maxBufferSize the size buffers may grow to, limited by {@link #MAX_BUFFER_SIZE}
+     * @param inflate whether content with a {@code gzip} or {@code deflate} {@code Content-Encoding}
+     * is inflated
+     * @return the publisher of the request content, inflated by an {@link InflatingProcessor} if
+     * asked for and the request has a {@code gzip} or {@code deflate} {@code Content-Encoding}.
+     * Once obtained, the same publisher is returned whatever the arguments.
+     * @throws IOException if the request input stream cannot be obtained
+     */
+    public static Publisher<ByteBuffer> getPublisher(AsyncContext context, ByteBufferPool pool, int minBufferSize, int maxBufferSize, boolean inflate) throws IOException
     {
         HttpServletRequest request = (HttpServletRequest)context.getRequest();
-        RequestPublisher result = (RequestPublisher)request.getAttribute(PUBLISHER_ATTRIBUTE);
+        @SuppressWarnings("unchecked")
+        Publisher<ByteBuffer> result = (Publisher<ByteBuffer>)request.getAttribute(PUBLISHER_ATTRIBUTE);
         if (result == null)
         {
-            result = new RequestPublisher(context, 8192);
+            maxBufferSize = Math.min(maxBufferSize, MAX_BUFFER_SIZE);
+            RequestPublisher publisher = new RequestPublisher(context, pool, Math.min(minBufferSize, MAX_BUFFER_SIZE), maxBufferSize);
+            result = publisher;
+            String encoding = inflate ? request.getHeader("Content-Encoding") : null;
+            if (encoding != null)
+            {
+                encoding = encoding.trim();
+                boolean gzip = "gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding);
+                if (gzip || "deflate".equalsIgnoreCase(encoding))
+                {
+                    InflatingProcessor processor = new InflatingProcessor(gzip, pool, maxBufferSize);
+                    publisher.subscribe(processor);
+                    result = processor;
+                }
+            }
             request.setAttribute(PUBLISHER_ATTRIBUTE, result);
-            request.getInputStream().setReadListener(result);
+            request.getInputStream().setReadListener(publisher);
         }
         return result;
     }
+
+    /**
+     * Pipes the request content through processing stages to the response.
+     * <p>The stages are subscribed in order, the first to the {@link #getPublisher(AsyncContext)
+     * publisher} of the request content and the last by an {@link AsyncIOSubscriber} that
+     * writes each buffer as is.  The subscriber requests the next buffer only once the previous
+     * write has completed, and the stages forward demand in lock step, so reads are driven by
+     * {@link javax.servlet.WriteListener#onWritePossible()} and at most one buffer is held by
+     * each stage.  A failure of the request or of a stage ends the response, as
+     * {@link AsyncIOSubscriber#onError(Throwable)} does.</p>
+     * @param in the async context of the request to read the content of
+     * @param out the async context of the response to write, which may be the same as in
+     * @param stages the processors that transform the content, if any
+     * @throws IOException if the request input stream or the response output stream cannot be obtained
+     */
+    @SafeVarargs
+    public static void pipe(AsyncContext in, AsyncContext out, Processor<ByteBuffer, ByteBuffer>... stages) throws IOException
+    {
+        Publisher<ByteBuffer> publisher = getPublisher(in);
+        for (Processor<ByteBuffer, ByteBuffer> stage : stages)
+        {
+            publisher.subscribe(stage);
+            publisher = stage;
+        }
+        publisher.subscribe(new AsyncIOSubscriber(out, AsyncIOSubscriber::send));
+    }
+
+    /**
+     * Returns an item to the pool of its publisher, if the subscription is a {@link PooledSubscription}.
+     * @param subscription the subscription the item was received from
+     * @param item the item no longer used by the subscriber
+     * @param <T> the type of the item
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> void release(Subscription subscription, T item)
+    {
+        if (subscription instanceof PooledSubscription)
+            ((PooledSubscription<T>)subscription).release(item);
+    }
+
+    private static boolean isPresent(String className)
+    {
+        try
+        {
+            Class.forName(className, false, ReactiveSupport.class.getClassLoader());
+            return true;
+        }
+        catch (Throwable x)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer to a servlet output stream.
+     * <p>Heap buffers are written from their backing array. Direct buffers are passed
+     * to Jetty's {@code HttpOutput.write(ByteBuffer)} so they are written without being
+     * copied to the heap; other containers get a heap copy.  In async mode the buffer may
+     * still be referenced by the output until {@link ServletOutputStream#isReady()} returns true.</p>
+     * @param output the output stream to write to
+     * @param buffer the buffer to write
+     * @throws IOException if the write fails
+     */
+    static void write(ServletOutputStream output, ByteBuffer buffer) throws IOException
+    {
+        if (buffer.hasArray())
+        {
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        else if (!JETTY_SERVER || !JettySupport.write(output, buffer))
+        {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.slice().get(bytes);
+            output.write(bytes);
+        }
+    }
 }
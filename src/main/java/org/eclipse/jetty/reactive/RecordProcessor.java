@@ -0,0 +1,178 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A processor that frames content into records.
+ * <p>A record that lies within a single buffer is published as a slice of that buffer, without
+ * copying.  The buffer is released to its pool once the processor has framed it and the
+ * subscriber has {@link PooledSubscription#release(Object) released} all the records sliced from
+ * it.  Only the most recent slices are tracked, so a subscriber that does not release them does
+ * not cause the buffers to be retained.  A record that spans buffers is copied into a buffer of
+ * its own.</p>
+ * <p>Records larger than the {@link #setMaxRecordSize(int) maximum record size} fail the
+ * subscriber with an {@link IllegalStateException} and cancel the publisher.</p>
+ */
+public abstract class RecordProcessor extends IteratingProcessor<ByteBuffer, ByteBuffer>
+{
+    private final Lease.Slices slices = new Lease.Slices();
+    private int maxRecordSize = 1024 * 1024;
+    private Lease lease;
+    private ByteBuffer partial;
+
+    public int getMaxRecordSize()
+    {
+        return maxRecordSize;
+    }
+
+    /**
+     * @param maxRecordSize The maximum size of a record, excluding its framing.  Must be set before subscribing.
+     */
+    public void setMaxRecordSize(int maxRecordSize)
+    {
+        this.maxRecordSize = maxRecordSize;
+    }
+
+    /**
+     * Finds the end of the current record in an item.
+     * <p>Framing bytes before the content of the record, such as a length prefix, are consumed
+     * by advancing the position of the item.</p>
+     * @param item the item, positioned after the bytes of the record already framed
+     * @param framed the number of bytes of the record content framed from previous items
+     * @return the index of the end of the record content, or -1 if the record continues in the next item
+     */
+    protected abstract int frame(ByteBuffer item, int framed);
+
+    /**
+     * @return the number of framing bytes that follow the content of a record
+     */
+    protected abstract int trailer();
+
+    /**
+     * @param record the content of a record not ended before the end of the content, or null
+     * @return the last record to publish, or null
+     */
+    protected abstract ByteBuffer last(ByteBuffer record);
+
+    @Override
+    protected ByteBuffer process(ByteBuffer item)
+    {
+        if (!item.hasRemaining())
+            return null;
+
+        int end = frame(item, partial == null ? 0 : partial.position());
+        int position = item.position();
+        int limit = end < 0 ? item.limit() : end;
+        long size = (partial == null ? 0 : partial.position()) + limit - position;
+        if (size > maxRecordSize)
+            throw new IllegalStateException("Record larger than " + maxRecordSize);
+
+        if (end < 0)
+        {
+            append(item, position, limit);
+            item.position(limit);
+            return null;
+        }
+
+        ByteBuffer record;
+        if (partial == null)
+        {
+            // The record lies within the item, so publish a slice of it
+            ByteBuffer slice = item.duplicate();
+            slice.limit(end);
+            record = slice.slice();
+            Lease lease = lease(item);
+            lease.retain();
+            slices.add(record, lease);
+        }
+        else
+        {
+            append(item, position, end);
+            record = partial;
+            record.flip();
+            partial = null;
+        }
+        item.position(end + trailer());
+        return record;
+    }
+
+    @Override
+    protected boolean isConsumed(ByteBuffer item)
+    {
+        return !item.hasRemaining();
+    }
+
+    @Override
+    protected ByteBuffer complete()
+    {
+        ByteBuffer record = partial;
+        partial = null;
+        if (record != null)
+            record.flip();
+        return last(record);
+    }
+
+    @Override
+    protected void release(ByteBuffer item)
+    {
+        Lease lease = this.lease;
+        this.lease = null;
+        if (lease != null && lease.getBuffer() == item)
+            lease.release();
+        else
+            super.release(item);
+    }
+
+    @Override
+    protected void releaseResult(ByteBuffer record)
+    {
+        slices.release(record);
+    }
+
+    private Lease lease(ByteBuffer item)
+    {
+        if (lease == null || lease.getBuffer() != item)
+            lease = new Lease(item, super::release);
+        return lease;
+    }
+
+    private void append(ByteBuffer item, int position, int end)
+    {
+        int length = end - position;
+        if (length == 0)
+            return;
+        if (partial == null)
+        {
+            partial = ByteBuffer.allocate(Math.min(Math.max(2 * length, 256), maxRecordSize));
+        }
+        else if (partial.remaining() < length)
+        {
+            int capacity = (int)Math.min(Math.max(2L * partial.capacity(), partial.position() + length), maxRecordSize);
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            partial.flip();
+            larger.put(partial);
+            partial = larger;
+        }
+        ByteBuffer content = item.duplicate();
+        content.limit(end).position(position);
+        partial.put(content);
+    }
+}
@@ -20,33 +20,75 @@ package org.eclipse.jetty.reactive;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 
+import org.eclipse.jetty.io.ByteBufferPool;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 import org.reactivestreams.Publisher;
 import org.reactivestreams.Subscriber;
-import org.reactivestreams.Subscription;
 
-public class RequestPublisher implements Publisher<ByteBuffer>, Subscription, ReadListener
+/**
+ * A {@link Publisher} of the request content.
+ * <p>Each item is a buffer leased from a {@link ByteBufferPool}, so subscribers may hold
+ * it across further requests without copying and return it with {@link #release(ByteBuffer)}.</p>
+ * <p>The size of the buffers adapts between a minimum and a maximum: it doubles while reads
+ * fill the buffer and halves when reads come back less than half full.  When the request has
+ * a {@code Content-Length}, reading starts with a buffer large enough for the whole content
+ * (within the maximum) and never uses a buffer larger than needed.</p>
+ * <p>Demand may be signalled from any thread, for example by a processor that hands items off
+ * to an executor.  Reading stalls once the demand is exhausted and whichever thread then
+ * increases the demand resumes reading, so that only one thread reads at a time and no
+ * wakeup is lost.</p>
+ */
+public class RequestPublisher implements Publisher<ByteBuffer>, PooledSubscription<ByteBuffer>, ReadListener
 {
     private static final Logger LOG = Log.getLogger(RequestPublisher.class);
 
     private final AsyncContext context;
-    private final byte[] bytes;
-    private final ByteBuffer buffer;
+    private final ByteBufferPool pool;
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    private int bufferSize;
     private Subscriber<? super ByteBuffer> subscriber;
-    private long demand;
-    private boolean stalled;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicBoolean stalled = new AtomicBoolean();
+    private volatile boolean cancelled;
 
-    public RequestPublisher(AsyncContext context, int bufferSize)
+    public RequestPublisher(AsyncContext context, ByteBufferPool pool, int bufferSize)
     {
+        this(context, pool, bufferSize, bufferSize);
+    }
+
+    public RequestPublisher(AsyncContext context, ByteBufferPool pool, int minBufferSize, int maxBufferSize)
+    {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize)
+            throw new IllegalArgumentException("Invalid buffer sizes " + minBufferSize + "/" + maxBufferSize);
         this.context = context;
-        this.bytes = new byte[bufferSize];
-        this.buffer = ByteBuffer.wrap(bytes);
+        this.pool = pool;
+        this.minBufferSize = minBufferSize;
+        long contentLength = context.getRequest().getContentLengthLong();
+        if (contentLength >= 0)
+        {
+            // The content length bounds the buffer needed, so start from there.
+            this.maxBufferSize = (int)Math.min(maxBufferSize, Math.max(contentLength, minBufferSize));
+            this.bufferSize = this.maxBufferSize;
+        }
+        else
+        {
+            this.maxBufferSize = maxBufferSize;
+            this.bufferSize = minBufferSize;
+        }
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
     }
 
     @Override
@@ -61,10 +103,17 @@ public class RequestPublisher implements Publisher<ByteBuffer>, Subscription, Re
             if (LOG.isDebugEnabled())
                 LOG.debug("Demand: {}", demand);
 
-            if (demand <= 0)
-            {
-                stalled = true;
+            if (cancelled)
                 break;
+
+            if (demand.get() <= 0)
+            {
+                stalled.set(true);
+                // Demand may have been added before stalled was set, in which case
+                // either this thread or the requesting thread resumes reading, not both
+                if (demand.get() <= 0 || !stalled.compareAndSet(true, false))
+                    break;
+                continue;
             }
 
             boolean ready = input.isReady();
@@ -74,16 +123,21 @@ public class RequestPublisher implements Publisher<ByteBuffer>, Subscription, Re
             if (!ready)
                 break;
 
-            int read = input.read(bytes);
+            ByteBuffer buffer = pool.acquire(bufferSize, false);
+            int read = input.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
             if (LOG.isDebugEnabled())
                 LOG.debug("Input read: {}", read);
 
+            if (read <= 0)
+                pool.release(buffer);
+
             if (read < 0)
                 break;
 
             if (read > 0)
             {
-                --demand;
+                adapt(read);
+                demand.decrementAndGet();
                 buffer.position(0);
                 buffer.limit(read);
                 if (LOG.isDebugEnabled())
@@ -93,16 +147,29 @@ public class RequestPublisher implements Publisher<ByteBuffer>, Subscription, Re
         }
     }
 
+    private void adapt(int read)
+    {
+        int size = bufferSize;
+        if (read >= bufferSize)
+            bufferSize = Math.min(bufferSize * 2, maxBufferSize);
+        else if (read < bufferSize / 2)
+            bufferSize = Math.max(bufferSize / 2, minBufferSize);
+        if (LOG.isDebugEnabled() && size != bufferSize)
+            LOG.debug("Buffer size {} -> {}", size, bufferSize);
+    }
+
     @Override
     public void onAllDataRead() throws IOException
     {
-        subscriber.onComplete();
+        if (!cancelled)
+            subscriber.onComplete();
     }
 
     @Override
     public void onError(Throwable failure)
     {
-        subscriber.onError(failure);
+        if (!cancelled)
+            subscriber.onError(failure);
     }
 
     @Override
@@ -132,18 +199,22 @@ public class RequestPublisher implements Publisher<ByteBuffer>, Subscription, Re
     {
         if (LOG.isDebugEnabled())
             LOG.debug("Updating demand {} by {}, stalled: {}", demand, n, stalled);
-        demand += n;
-        if (stalled)
-        {
-            stalled = false;
+        demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+        if (stalled.compareAndSet(true, false))
             notifyDataAvailable();
-        }
+    }
+
+    @Override
+    public void release(ByteBuffer buffer)
+    {
+        pool.release(buffer);
     }
 
     @Override
     public void cancel()
     {
-        // TODO more than this
+        // Stop reading and signalling, then discard the rest of the content
+        cancelled = true;
         try
         {
             context.getRequest().getInputStream().close();
@@ -0,0 +1,478 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.Locker;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A processor that buffers content ahead of a slow subscriber, spilling it to a file.
+ * <p>Content is requested from the publisher as fast as it arrives, whatever the demand of the
+ * subscriber, so that a request can be read and its connection freed while the subscriber is
+ * still catching up.  Up to the memory threshold, the buffers of the publisher are held as they
+ * are.  Beyond it, content is written to a temporary file through a {@link FileChannel} and the
+ * buffers are released, and the content is later read back into buffers leased from a
+ * {@link ByteBufferPool} at the pace of the subscriber.  The file is deleted once the content
+ * has been published, or the stream fails or is cancelled.</p>
+ * <p>The subscription is a {@link PooledSubscription}, so subscribers may release the buffers to
+ * the publisher or the pool they came from.  Only the most recent buffers are tracked, and a
+ * buffer that is not tracked is dropped rather than released.  Content beyond the
+ * {@link #setMaxSpillSize(long) maximum spill size}, or a failure to write the file, cancels the
+ * publisher and fails the subscriber.</p>
+ */
+public class SpillingProcessor implements Processor<ByteBuffer, ByteBuffer>, PooledSubscription<ByteBuffer>
+{
+    private static final Logger LOG = Log.getLogger(SpillingProcessor.class);
+    private static final int PREFETCH = 4;
+
+    private final Locker lock = new Locker();
+    private final Deque<ByteBuffer> memory = new ArrayDeque<>();
+    private final Lease.Slices leased = new Lease.Slices();
+    private final ByteBufferPool pool;
+    private final int bufferSize;
+    private final long memoryThreshold;
+    private Path directory;
+    private long maxSpillSize = Long.MAX_VALUE;
+    private Subscription upstream;
+    private Subscriber<? super ByteBuffer> subscriber;
+    private long demand;
+    private long memoryBytes;
+    private FileChannel file;
+    private long written;
+    private long read;
+    private boolean complete;
+    private Throwable failure;
+    private boolean cancelled;
+    private boolean terminated;
+    private boolean draining;
+    private boolean again;
+
+    /**
+     * @param pool the pool to lease the buffers read back from the file from
+     * @param bufferSize the size of the buffers read back from the file
+     * @param memoryThreshold the number of bytes held in memory before spilling to the file
+     */
+    public SpillingProcessor(ByteBufferPool pool, int bufferSize, long memoryThreshold)
+    {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+        this.pool = pool;
+        this.bufferSize = bufferSize;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    public Path getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * @param directory The directory of the temporary file, or null for the default temporary
+     * file directory.  Must be set before subscribing.
+     */
+    public void setDirectory(Path directory)
+    {
+        this.directory = directory;
+    }
+
+    public long getMaxSpillSize()
+    {
+        return maxSpillSize;
+    }
+
+    /**
+     * @param maxSpillSize The maximum number of bytes written to the file.  Must be set before subscribing.
+     */
+    public void setMaxSpillSize(long maxSpillSize)
+    {
+        this.maxSpillSize = maxSpillSize;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription)
+    {
+        if (subscription == null)
+            throw new NullPointerException();
+        boolean duplicate;
+        try (Locker.Lock l = lock.lock())
+        {
+            duplicate = upstream != null;
+            if (!duplicate)
+                upstream = subscription;
+        }
+        if (duplicate)
+            subscription.cancel();
+        else
+            subscription.request(PREFETCH);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item)
+    {
+        if (item == null)
+            throw new NullPointerException();
+        boolean spill;
+        boolean drop;
+        try (Locker.Lock l = lock.lock())
+        {
+            drop = terminated || cancelled || failure != null;
+            // Once spilling, content goes to the file until it has been read back, to keep the order
+            spill = !drop && (written > read || memoryBytes + item.remaining() > memoryThreshold);
+            if (!drop && !spill)
+            {
+                memory.add(item);
+                memoryBytes += item.remaining();
+            }
+        }
+        if (drop)
+        {
+            ReactiveSupport.release(upstream, item);
+            return;
+        }
+
+        if (spill)
+        {
+            try
+            {
+                spill(item);
+            }
+            catch (Throwable x)
+            {
+                upstream.cancel();
+                try (Locker.Lock l = lock.lock())
+                {
+                    if (failure == null)
+                        failure = x;
+                }
+                drain();
+                return;
+            }
+            finally
+            {
+                ReactiveSupport.release(upstream, item);
+            }
+        }
+
+        upstream.request(1);
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable failure)
+    {
+        if (failure == null)
+            throw new NullPointerException();
+        try (Locker.Lock l = lock.lock())
+        {
+            if (this.failure == null)
+                this.failure = failure;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete()
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            complete = true;
+        }
+        drain();
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber)
+    {
+        if (subscriber == null)
+            throw new NullPointerException();
+        try (Locker.Lock l = lock.lock())
+        {
+            if (this.subscriber != null)
+                throw new IllegalStateException("already subscribed");
+            this.subscriber = subscriber;
+        }
+        subscriber.onSubscribe(this);
+        drain();
+    }
+
+    @Override
+    public void request(long n)
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (n <= 0)
+            {
+                if (failure == null)
+                    failure = new IllegalArgumentException("Rule 3.9: request " + n);
+            }
+            else
+            {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel()
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            cancelled = true;
+        }
+        drain();
+    }
+
+    @Override
+    public void release(ByteBuffer buffer)
+    {
+        // A buffer no longer tracked may have come from the pool, so it must not go to the publisher
+        leased.release(buffer);
+    }
+
+    private void spill(ByteBuffer item) throws IOException
+    {
+        FileChannel file;
+        long position;
+        try (Locker.Lock l = lock.lock())
+        {
+            file = this.file;
+            position = written;
+        }
+        if (position + item.remaining() > maxSpillSize)
+            throw new IllegalStateException("Spilled content larger than " + maxSpillSize);
+        if (file == null)
+        {
+            Path path = directory == null ? Files.createTempFile("spill", ".tmp") : Files.createTempFile(directory, "spill", ".tmp");
+            if (LOG.isDebugEnabled())
+                LOG.debug("Spilling to {}", path);
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            boolean closed;
+            try (Locker.Lock l = lock.lock())
+            {
+                // A cancel racing this spill may have terminated and already closed the previous file
+                closed = terminated || cancelled;
+                if (!closed)
+                    this.file = file;
+            }
+            if (closed)
+            {
+                close(file);
+                throw new IllegalStateException("Spilling cancelled");
+            }
+        }
+
+        ByteBuffer content = item.duplicate();
+        while (content.hasRemaining())
+            position += file.write(content, position);
+
+        // Only now may the content be read back
+        try (Locker.Lock l = lock.lock())
+        {
+            written = position;
+        }
+    }
+
+    /**
+     * Signals the subscriber.
+     * <p>Only one thread at a time drains.  A thread that finds another draining just asks it
+     * to go around its loop again, so that signals from within onNext() do not recurse.</p>
+     */
+    private void drain()
+    {
+        try (Locker.Lock l = lock.lock())
+        {
+            if (draining)
+            {
+                again = true;
+                return;
+            }
+            draining = true;
+        }
+
+        while (true)
+        {
+            Subscriber<? super ByteBuffer> subscriber;
+            ByteBuffer item = null;
+            FileChannel file = null;
+            long position = 0;
+            int length = 0;
+            Throwable error = null;
+            boolean done = false;
+            boolean cancel = false;
+            List<ByteBuffer> released = null;
+            try (Locker.Lock l = lock.lock())
+            {
+                subscriber = this.subscriber;
+                if (subscriber != null && !terminated)
+                {
+                    if (cancelled || failure != null)
+                    {
+                        error = cancelled ? null : failure;
+                        cancel = !complete;
+                        terminated = true;
+                    }
+                    else if (demand > 0 && !memory.isEmpty())
+                    {
+                        item = memory.poll();
+                        memoryBytes -= item.remaining();
+                    }
+                    else if (demand > 0 && read < written)
+                    {
+                        file = this.file;
+                        position = read;
+                        length = (int)Math.min(bufferSize, written - read);
+                    }
+                    else if (complete && memory.isEmpty() && read == written)
+                    {
+                        done = true;
+                        terminated = true;
+                    }
+
+                    if (item != null || file != null)
+                    {
+                        if (demand != Long.MAX_VALUE)
+                            --demand;
+                    }
+                    else if (terminated)
+                    {
+                        released = new ArrayList<>(memory);
+                        memory.clear();
+                        file = this.file;
+                        this.file = null;
+                    }
+                }
+
+                if (item == null && file == null && !terminated)
+                {
+                    if (again)
+                    {
+                        again = false;
+                        continue;
+                    }
+                    draining = false;
+                    return;
+                }
+                if (terminated && released == null)
+                {
+                    draining = false;
+                    return;
+                }
+            }
+
+            if (released != null)
+            {
+                // Terminate, cleaning up the content not published
+                for (ByteBuffer buffer : released)
+                    ReactiveSupport.release(upstream, buffer);
+                close(file);
+                if (cancel)
+                    upstream.cancel();
+                if (done)
+                    subscriber.onComplete();
+                else if (error != null)
+                    subscriber.onError(error);
+                continue;
+            }
+
+            if (item == null)
+            {
+                try
+                {
+                    item = readBack(file, position, length);
+                }
+                catch (Throwable x)
+                {
+                    try (Locker.Lock l = lock.lock())
+                    {
+                        if (failure == null)
+                            failure = x;
+                    }
+                    continue;
+                }
+            }
+            else
+            {
+                leased.add(item, new Lease(item, buffer -> ReactiveSupport.release(upstream, buffer)));
+            }
+            subscriber.onNext(item); // may callback request(n)
+        }
+    }
+
+    private ByteBuffer readBack(FileChannel file, long position, int length) throws IOException
+    {
+        ByteBuffer buffer = pool.acquire(length, false);
+        try
+        {
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining())
+            {
+                int n = file.read(buffer, position);
+                if (n < 0)
+                    throw new EOFException();
+                position += n;
+            }
+            buffer.flip();
+        }
+        catch (Throwable x)
+        {
+            pool.release(buffer);
+            throw x;
+        }
+
+        try (Locker.Lock l = lock.lock())
+        {
+            read += length;
+        }
+        leased.add(buffer, new Lease(buffer, pool::release));
+        return buffer;
+    }
+
+    private void close(FileChannel file)
+    {
+        if (file == null)
+            return;
+        try
+        {
+            file.close();
+        }
+        catch (IOException x)
+        {
+            LOG.ignore(x);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, single producer single consumer queue.
+ * <p>The producer and consumer do not share indexes: a slot is free when it is null, so each
+ * side only reads the slots.  The capacity is rounded up to a power of 2.  The same threading
+ * rules apply as for {@link SpscQueue}.</p>
+ *
+ * @param <T> the type of the items
+ */
+class SpscArrayQueue<T>
+{
+    private final AtomicReferenceArray<T> items;
+    private final int mask;
+    private long producer;
+    private long consumer;
+
+    SpscArrayQueue(int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        items = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * @param item the item to add
+     * @return false if the queue is full
+     */
+    public boolean offer(T item)
+    {
+        int index = (int)producer & mask;
+        if (items.get(index) != null)
+            return false;
+        items.lazySet(index, item);
+        ++producer;
+        return true;
+    }
+
+    public T poll()
+    {
+        int index = (int)consumer & mask;
+        T item = items.get(index);
+        if (item == null)
+            return null;
+        items.lazySet(index, null);
+        ++consumer;
+        return item;
+    }
+
+    public boolean isEmpty()
+    {
+        return items.get((int)consumer & mask) == null;
+    }
+}
@@ -0,0 +1,78 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2015 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.reactive;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded, lock-free, single producer single consumer queue.
+ * <p>Only one thread at a time may call {@link #offer(Object)} and only one thread
+ * at a time may call {@link #peek()}, {@link #poll()} or {@link #isEmpty()}.  The
+ * producing and consuming threads may change, as long as each hand over happens-before
+ * the next, as Reactive Streams signals and the iterating state of
+ * {@link IteratingProcessor} guarantee.</p>
+ *
+ * @param <T> the type of the items
+ */
+class SpscQueue<T>
+{
+    private Node<T> head = new Node<>(null);
+    private Node<T> tail = head;
+
+    public void offer(T item)
+    {
+        Node<T> node = new Node<>(item);
+        tail.lazySet(node);
+        tail = node;
+    }
+
+    public T peek()
+    {
+        Node<T> next = head.get();
+        return next == null ? null : next.item;
+    }
+
+    public T poll()
+    {
+        Node<T> next = head.get();
+        if (next == null)
+            return null;
+        T item = next.item;
+        next.item = null;
+        head = next;
+        return item;
+    }
+
+    public boolean isEmpty()
+    {
+        return head.get() == null;
+    }
+
+    private static class Node<T> extends AtomicReference<Node<T>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private T item;
+
+        private Node(T item)
+        {
+            this.item = item;
+        }
+    }
+}
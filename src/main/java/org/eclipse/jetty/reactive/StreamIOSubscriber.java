@@ -70,7 +70,8 @@ public class StreamIOSubscriber implements Subscriber<ByteBuffer>
         try
         {
             ServletOutputStream output = context.getResponse().getOutputStream();
-            output.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+            ReactiveSupport.write(output, buffer);
+            ReactiveSupport.release(subscription, buffer);
             subscription.request(1);
         }
         catch (Throwable failure)
@@ -0,0 +1,61 @@
+package org.eclipse.jetty.reactive;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.tck.IdentityProcessorVerification;
+import org.reactivestreams.tck.TestEnvironment;
+import org.testng.annotations.AfterClass;
+
+public class ParallelMapProcessorTest extends IdentityProcessorVerification<Integer>
+{
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    public ParallelMapProcessorTest()
+    {
+        super(new TestEnvironment(IteratingProcessorTest.DEFAULT_TIMEOUT_MILLIS), IteratingProcessorTest.PUBLISHER_REFERENCE_CLEANUP_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public Processor<Integer, Integer> createIdentityProcessor(int bufferSize)
+    {
+        return new ParallelMapProcessor<>(executor, Function.identity(), 4);
+    }
+
+    @Override
+    public Publisher<Integer> createFailedPublisher()
+    {
+        return null;
+    }
+
+    @Override
+    public Integer createElement(int item)
+    {
+        return item;
+    }
+
+    @Override
+    public ExecutorService publisherExecutorService()
+    {
+        return new ThreadPoolExecutor(10, 10, 10, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1000));
+    }
+
+    @Override
+    public long maxSupportedSubscribers()
+    {
+        // A second subscriber is rejected
+        return 1;
+    }
+
+    @AfterClass
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -18,12 +18,36 @@
 
 package org.eclipse.jetty.reactive;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.URLEncoder;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
@@ -34,12 +58,15 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
 import org.eclipse.jetty.client.util.BytesContentProvider;
 import org.eclipse.jetty.client.util.DeferredContentProvider;
 import org.eclipse.jetty.client.util.FormContentProvider;
 import org.eclipse.jetty.client.util.FutureResponseListener;
+import org.eclipse.jetty.client.util.StringContentProvider;
 import org.eclipse.jetty.http.HttpMethod;
 import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
@@ -47,6 +74,7 @@ import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.toolchain.test.TestTracker;
 import org.eclipse.jetty.util.Fields;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -94,7 +122,29 @@ public class ReactiveStreamsTest
     public void dispose() throws Exception
     {
         client.stop();
-        server.stop();
+        if (server != null)
+            server.stop();
+    }
+
+    /**
+     * Sends content in chunks of random sizes, so that reads stall and resume many times.
+     */
+    private ContentResponse sendChunked(Request request, byte[] bytes, int maxLength) throws Exception
+    {
+        DeferredContentProvider content = new DeferredContentProvider();
+        request.timeout(5, TimeUnit.SECONDS).content(content);
+        FutureResponseListener listener = new FutureResponseListener(request, maxLength);
+        request.send(listener);
+
+        Random random = new Random();
+        for (int offset = 0; offset < bytes.length;)
+        {
+            int length = Math.min(1 + random.nextInt(4096), bytes.length - offset);
+            content.offer(ByteBuffer.wrap(bytes, offset, length));
+            offset += length;
+        }
+        content.close();
+        return listener.get(5, TimeUnit.SECONDS);
     }
 
     @Test
@@ -148,6 +198,216 @@ public class ReactiveStreamsTest
         Assert.assertArrayEquals(bytes, response.getContent());
     }
 
+    @Test
+    public void testAsyncIODirectBuffers() throws Exception
+    {
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                Processor<ByteBuffer, ByteBuffer> processor = new IteratingProcessor<ByteBuffer, ByteBuffer>()
+                {
+                    @Override
+                    protected ByteBuffer process(ByteBuffer item)
+                    {
+                        ByteBuffer direct = ByteBuffer.allocateDirect(item.remaining());
+                        direct.put(item).flip();
+                        return direct;
+                    }
+                };
+                publisher.subscribe(processor);
+                processor.subscribe(new AsyncIOSubscriber(context, AsyncIOSubscriber::send));
+            }
+        });
+
+        byte[] bytes = new byte[1024 * 1024];
+        new Random().nextBytes(bytes);
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .content(new BytesContentProvider(bytes));
+        FutureResponseListener listener = new FutureResponseListener(request, bytes.length);
+        request.send(listener);
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertArrayEquals(bytes, response.getContent());
+    }
+
+    @Test
+    public void testAsyncIOAggregation() throws Exception
+    {
+        ScheduledExecutorScheduler scheduler = new ScheduledExecutorScheduler();
+        scheduler.start();
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                // A chatty processor that slices its input into small chunks.
+                Processor<ByteBuffer, ByteBuffer> processor = new IteratingProcessor<ByteBuffer, ByteBuffer>()
+                {
+                    @Override
+                    protected ByteBuffer process(ByteBuffer item)
+                    {
+                        ByteBuffer slice = item.slice();
+                        slice.limit(Math.min(16, item.remaining()));
+                        item.position(item.position() + slice.remaining());
+                        return slice;
+                    }
+
+                    @Override
+                    protected boolean isConsumed(ByteBuffer item)
+                    {
+                        return !item.hasRemaining();
+                    }
+
+                    @Override
+                    protected void release(ByteBuffer item)
+                    {
+                        // The slices refer to the item, so it is not returned to the pool.
+                    }
+                };
+                publisher.subscribe(processor);
+                AsyncIOSubscriber subscriber = new AsyncIOSubscriber(context, AsyncIOSubscriber::send, new ArrayByteBufferPool(), 8, 4096);
+                subscriber.setFlushDelay(scheduler, 10, TimeUnit.MILLISECONDS);
+                processor.subscribe(subscriber);
+            }
+        });
+
+        try
+        {
+            byte[] bytes = new byte[256 * 1024 + 5];
+            new Random().nextBytes(bytes);
+            DeferredContentProvider content = new DeferredContentProvider();
+            Request request = client.newRequest("localhost", connector.getLocalPort())
+                    .content(content);
+            FutureResponseListener listener = new FutureResponseListener(request, 2 * bytes.length);
+            request.send(listener);
+
+            int chunk = 1000;
+            for (int offset = 0; offset < bytes.length; offset += chunk)
+                content.offer(ByteBuffer.wrap(bytes, offset, Math.min(chunk, bytes.length - offset)));
+            content.close();
+
+            ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+            Assert.assertArrayEquals(bytes, response.getContent());
+        }
+        finally
+        {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void testFilePublisher() throws Exception
+    {
+        byte[] bytes = new byte[3 * 1024 * 1024 + 17];
+        new Random().nextBytes(bytes);
+        Path file = Files.createTempFile("reactive", ".bin");
+        Files.write(file, bytes);
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher;
+                if (request.getParameter("offset") == null)
+                    publisher = new FilePublisher(file, 64 * 1024);
+                else
+                    publisher = new FilePublisher(file, Long.parseLong(request.getParameter("offset")), Long.parseLong(request.getParameter("length")), 64 * 1024);
+                publisher.subscribe(new AsyncIOSubscriber(context, AsyncIOSubscriber::send));
+            }
+        });
+
+        try
+        {
+            Request request = client.newRequest("localhost", connector.getLocalPort());
+            FutureResponseListener listener = new FutureResponseListener(request, 2 * bytes.length);
+            request.send(listener);
+            ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+            Assert.assertArrayEquals(bytes, response.getContent());
+
+            response = client.newRequest("localhost", connector.getLocalPort())
+                    .param("offset", "1000")
+                    .param("length", "100000")
+                    .timeout(5, TimeUnit.SECONDS)
+                    .send();
+            Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+            Assert.assertArrayEquals(Arrays.copyOfRange(bytes, 1000, 101000), response.getContent());
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+
+        try
+        {
+            new FilePublisher(file, 64 * 1024);
+            Assert.fail();
+        }
+        catch (NoSuchFileException x)
+        {
+            // A missing file is not published as empty content
+        }
+    }
+
+    @Test
+    public void testFilePublisherInvalidRequest() throws Exception
+    {
+        Path file = Files.createTempFile("reactive", ".bin");
+        Files.write(file, new byte[4096]);
+        try
+        {
+            FilePublisher publisher = new FilePublisher(file, 1024);
+            List<String> signals = new CopyOnWriteArrayList<>();
+            publisher.subscribe(new Subscriber<ByteBuffer>()
+            {
+                private Subscription subscription;
+
+                @Override
+                public void onSubscribe(Subscription subscription)
+                {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(ByteBuffer buffer)
+                {
+                    signals.add("onNext");
+                    // The failure is only signalled once onNext() has returned
+                    subscription.request(-1);
+                    signals.add("returned");
+                }
+
+                @Override
+                public void onComplete()
+                {
+                    signals.add("onComplete");
+                }
+
+                @Override
+                public void onError(Throwable failure)
+                {
+                    signals.add("onError " + failure.getClass().getSimpleName());
+                }
+            });
+            Assert.assertEquals(Arrays.asList("onNext", "returned", "onError IllegalArgumentException"), signals);
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
     @Test
     public void testSlowAsyncIO() throws Exception
     {
@@ -189,12 +449,8 @@ public class ReactiveStreamsTest
     }
 
     @Test
-    public void testAsyncForm() throws Exception
+    public void testPooledBuffersHeldAcrossRequests() throws Exception
     {
-        Fields requestFields = new Fields(true);
-        requestFields.put("a", "1");
-        requestFields.put("b", "c");
-
         prepareServer(new HttpServlet()
         {
             @Override
@@ -202,82 +458,109 @@ public class ReactiveStreamsTest
             {
                 AsyncContext context = request.startAsync();
                 Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
-                Processor<ByteBuffer, Fields> processor = new FormProcessor();
-                publisher.subscribe(processor);
-                final CountDownLatch latch = new CountDownLatch(1);
-                processor.subscribe(new Subscriber<Fields>()
+                publisher.subscribe(new Subscriber<ByteBuffer>()
                 {
+                    private final List<ByteBuffer> buffers = new ArrayList<>();
+                    private Subscription subscription;
+
                     @Override
                     public void onSubscribe(Subscription subscription)
                     {
+                        this.subscription = subscription;
                         subscription.request(1);
                     }
 
                     @Override
-                    public void onNext(Fields fields)
+                    public void onNext(ByteBuffer buffer)
                     {
-                        Assert.assertEquals(requestFields, fields);
-                        latch.countDown();
+                        // Hold on to the buffer without copying it.
+                        buffers.add(buffer);
+                        subscription.request(1);
                     }
 
                     @Override
                     public void onComplete()
                     {
-                        context.complete();
+                        try
+                        {
+                            for (ByteBuffer buffer : buffers)
+                            {
+                                response.getOutputStream().write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                                ReactiveSupport.release(subscription, buffer);
+                            }
+                            context.complete();
+                        }
+                        catch (IOException x)
+                        {
+                            onError(x);
+                        }
                     }
 
                     @Override
                     public void onError(Throwable failure)
                     {
-                        // TODO
+                        failure.printStackTrace();
                     }
                 });
             }
         });
 
-        ContentResponse response = client.newRequest("localhost", connector.getLocalPort())
-                .timeout(5, TimeUnit.SECONDS)
-                .content(new FormContentProvider(requestFields))
-                .send();
+        byte[] bytes = new byte[256 * 1024];
+        new Random().nextBytes(bytes);
+        DeferredContentProvider content = new DeferredContentProvider();
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .content(content);
+        FutureResponseListener listener = new FutureResponseListener(request, bytes.length);
+        request.send(listener);
+
+        int chunk = bytes.length / 16;
+        for (int offset = 0; offset < bytes.length; offset += chunk)
+        {
+            content.offer(ByteBuffer.wrap(bytes, offset, chunk));
+            Thread.sleep(10);
+        }
+        content.close();
+
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
 
         Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertArrayEquals(bytes, response.getContent());
     }
-    
 
     @Test
-    public void testAsyncFormFields() throws Exception
+    public void testAdaptiveBufferSize() throws Exception
     {
-        Fields requestFields = new Fields(true);
-        requestFields.put("a", "1");
-        requestFields.put("bbb", "two");
-        requestFields.put("blah", "blah");
-
-        Fields resultFields = new Fields(true);
-
+        int minBufferSize = 1024;
+        int maxBufferSize = 16 * 1024;
+        List<Integer> sizes = new CopyOnWriteArrayList<>();
+        AtomicReference<Subscription> subscriptionRef = new AtomicReference<>();
+        CountDownLatch subscribed = new CountDownLatch(1);
         prepareServer(new HttpServlet()
         {
             @Override
             protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
             {
                 AsyncContext context = request.startAsync();
-                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
-                Processor<ByteBuffer, Fields.Field> processor = new FormFieldProcessor();
-                publisher.subscribe(processor);
-                processor.subscribe(new Subscriber<Fields.Field>()
+                RequestPublisher publisher = new RequestPublisher(context, new ArrayByteBufferPool(), minBufferSize, maxBufferSize);
+                // The initial size, then the size after each read
+                sizes.add(publisher.getBufferSize());
+                publisher.subscribe(new Subscriber<ByteBuffer>()
                 {
-                    Subscription subscription;
                     @Override
-                    public void onSubscribe(Subscription a)
+                    public void onSubscribe(Subscription subscription)
                     {
-                        subscription=a;
-                        subscription.request(1);
+                        // Chunked content is only requested once the test has sent it
+                        subscriptionRef.set(subscription);
+                        if (request.getContentLengthLong() >= 0)
+                            subscription.request(Long.MAX_VALUE);
+                        subscribed.countDown();
                     }
 
                     @Override
-                    public void onNext(Fields.Field field)
+                    public void onNext(ByteBuffer buffer)
                     {
-                        resultFields.add(field.getName(),field.getValue());
-                        subscription.request(1);
+                        sizes.add(publisher.getBufferSize());
+                        publisher.release(buffer);
                     }
 
                     @Override
@@ -289,23 +572,2261 @@ public class ReactiveStreamsTest
                     @Override
                     public void onError(Throwable failure)
                     {
-                        resultFields.clear();
                         failure.printStackTrace();
                     }
                 });
+                request.getInputStream().setReadListener(publisher);
             }
-            
-
         });
 
+        // A Content-Length sets the starting size
         ContentResponse response = client.newRequest("localhost", connector.getLocalPort())
+                .content(new BytesContentProvider(new byte[3000]))
                 .timeout(5, TimeUnit.SECONDS)
-                .content(new FormContentProvider(requestFields))
                 .send();
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertEquals(3000, (int)sizes.get(0));
+        for (int size : sizes)
+            Assert.assertTrue(size <= 3000);
 
+        // Without a Content-Length, the size starts from the minimum
+        sizes.clear();
+        DeferredContentProvider content = new DeferredContentProvider();
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .content(content);
+        FutureResponseListener listener = new FutureResponseListener(request);
+        request.send(listener);
+
+        // Reads that fill the buffer grow it up to the maximum
+        content.offer(ByteBuffer.wrap(new byte[256 * 1024]));
+        Assert.assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+        Thread.sleep(500);
+        subscriptionRef.get().request(Long.MAX_VALUE);
+        Thread.sleep(500);
+        Assert.assertEquals(minBufferSize, (int)sizes.get(0));
+        Assert.assertTrue(sizes.contains(maxBufferSize));
+
+        // Short reads shrink it down to the minimum
+        for (int i = 0; i < 8; i++)
+        {
+            content.offer(ByteBuffer.wrap(new byte[16]));
+            Thread.sleep(50);
+        }
+        content.close();
+
+        response = listener.get(5, TimeUnit.SECONDS);
         Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
-        Assert.assertEquals(requestFields, resultFields);
-        
-        
+        Assert.assertEquals(minBufferSize, (int)sizes.get(sizes.size() - 1));
+        for (int size : sizes)
+        {
+            Assert.assertTrue(size >= minBufferSize);
+            Assert.assertTrue(size <= maxBufferSize);
+        }
+    }
+
+    /**
+     * Passes buffers through an identity processor with a prefetch, recording the
+     * requests made upstream and the buffers received downstream.
+     */
+    private static class PrefetchProbe
+    {
+        private final List<Long> requests = new CopyOnWriteArrayList<>();
+        private final List<ByteBuffer> received = new CopyOnWriteArrayList<>();
+        private final IteratingProcessor<ByteBuffer, ByteBuffer> processor = new IteratingProcessor<ByteBuffer, ByteBuffer>()
+        {
+            @Override
+            protected ByteBuffer process(ByteBuffer item)
+            {
+                return item;
+            }
+        };
+        private Subscription downstream;
+
+        private PrefetchProbe(int prefetch, long maxQueuedBytes)
+        {
+            processor.setPrefetch(prefetch);
+            processor.setMaxQueuedBytes(maxQueuedBytes);
+            processor.onSubscribe(new Subscription()
+            {
+                @Override
+                public void request(long n)
+                {
+                    requests.add(n);
+                }
+
+                @Override
+                public void cancel()
+                {
+                }
+            });
+            processor.subscribe(new Subscriber<ByteBuffer>()
+            {
+                @Override
+                public void onSubscribe(Subscription subscription)
+                {
+                    downstream = subscription;
+                }
+
+                @Override
+                public void onNext(ByteBuffer buffer)
+                {
+                    received.add(buffer);
+                }
+
+                @Override
+                public void onComplete()
+                {
+                }
+
+                @Override
+                public void onError(Throwable failure)
+                {
+                    failure.printStackTrace();
+                }
+            });
+        }
+
+        private long requested()
+        {
+            return requests.stream().mapToLong(Long::longValue).sum();
+        }
+
+        private void publish(int items, int size)
+        {
+            for (int i = 0; i < items; i++)
+                processor.onNext(ByteBuffer.allocate(size));
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws Exception
+    {
+        PrefetchProbe probe = new PrefetchProbe(8, Long.MAX_VALUE);
+
+        // The first demand requests the whole prefetch ahead
+        probe.downstream.request(1);
+        Assert.assertEquals(Arrays.asList(8L), probe.requests);
+        probe.publish(8, 100);
+        Assert.assertEquals(1, probe.received.size());
+
+        // Nothing more is requested until 75% of the prefetch has been consumed
+        for (int i = 0; i < 5; i++)
+            probe.downstream.request(1);
+        Assert.assertEquals(6, probe.received.size());
+        Assert.assertEquals(8, probe.requested());
+        probe.downstream.request(1);
+        Assert.assertEquals(7, probe.received.size());
+        Assert.assertEquals(Arrays.asList(8L, 6L), probe.requests);
+    }
+
+    @Test
+    public void testPrefetchMaxQueuedBytes() throws Exception
+    {
+        PrefetchProbe probe = new PrefetchProbe(8, 1000);
+
+        probe.downstream.request(1);
+        probe.publish(8, 500);
+        for (int i = 0; i < 5; i++)
+            probe.downstream.request(1);
+        Assert.assertEquals(6, probe.received.size());
+
+        // Two 500 bytes items are still queued, so the prefetch is not replenished
+        probe.downstream.request(1);
+        Assert.assertEquals(7, probe.received.size());
+        Assert.assertEquals(8, probe.requested());
+
+        // Once below the bound, all the consumed items are requested again
+        probe.downstream.request(1);
+        Assert.assertEquals(8, probe.received.size());
+        Assert.assertEquals(Arrays.asList(8L, 7L), probe.requests);
+    }
+
+    @Test
+    public void testAsyncForm() throws Exception
+    {
+        Fields requestFields = new Fields(true);
+        requestFields.put("a", "1");
+        requestFields.put("b", "c");
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                Processor<ByteBuffer, Fields> processor = new FormProcessor();
+                publisher.subscribe(processor);
+                final CountDownLatch latch = new CountDownLatch(1);
+                processor.subscribe(new Subscriber<Fields>()
+                {
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(Fields fields)
+                    {
+                        Assert.assertEquals(requestFields, fields);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        // TODO
+                    }
+                });
+            }
+        });
+
+        ContentResponse response = client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(new FormContentProvider(requestFields))
+                .send();
+
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+    }
+    
+
+    @Test
+    public void testAsyncFormFields() throws Exception
+    {
+        Fields requestFields = new Fields(true);
+        requestFields.put("a", "1");
+        requestFields.put("bbb", "two");
+        requestFields.put("blah", "blah");
+
+        Fields resultFields = new Fields(true);
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                Processor<ByteBuffer, Fields.Field> processor = new FormFieldProcessor();
+                publisher.subscribe(processor);
+                processor.subscribe(new Subscriber<Fields.Field>()
+                {
+                    Subscription subscription;
+                    @Override
+                    public void onSubscribe(Subscription a)
+                    {
+                        subscription=a;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(Fields.Field field)
+                    {
+                        resultFields.add(field.getName(),field.getValue());
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        resultFields.clear();
+                        failure.printStackTrace();
+                    }
+                });
+            }
+            
+
+        });
+
+        ContentResponse response = client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(new FormContentProvider(requestFields))
+                .send();
+
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertEquals(requestFields, resultFields);
+        
+        
+    }
+
+    @Test
+    public void testAsyncFormFieldsUnboundedDemand() throws Exception
+    {
+        Fields requestFields = new Fields(true);
+        for (int i = 0; i < 500; ++i)
+            requestFields.put("n" + i, "v" + i);
+
+        Fields resultFields = new Fields(true);
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                Processor<ByteBuffer, Fields.Field> processor = new FormFieldProcessor();
+                publisher.subscribe(processor);
+                processor.subscribe(new Subscriber<Fields.Field>()
+                {
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(Fields.Field field)
+                    {
+                        resultFields.add(field.getName(), field.getValue());
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        resultFields.clear();
+                        failure.printStackTrace();
+                    }
+                });
+            }
+        });
+
+        ContentResponse response = client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(new FormContentProvider(requestFields))
+                .send();
+
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertEquals(requestFields, resultFields);
+    }
+
+    @Test
+    public void testAsyncFormFieldsTooManyKeys() throws Exception
+    {
+        Fields requestFields = new Fields(true);
+        for (int i = 0; i < 20; ++i)
+            requestFields.put("n" + i, "v" + i);
+
+        List<Fields.Field> resultFields = new ArrayList<>();
+        AtomicReference<Throwable> failed = new AtomicReference<>();
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                FormFieldProcessor processor = new FormFieldProcessor();
+                processor.getFormLimits().setMaxFormKeys(10);
+                publisher.subscribe(processor);
+                processor.subscribe(new Subscriber<Fields.Field>()
+                {
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(Fields.Field field)
+                    {
+                        resultFields.add(field);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        failed.set(failure);
+                        response.setStatus(HttpStatus.REQUEST_ENTITY_TOO_LARGE_413);
+                        context.complete();
+                    }
+                });
+            }
+        });
+
+        ContentResponse response = client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(new FormContentProvider(requestFields))
+                .send();
+
+        Assert.assertEquals(HttpStatus.REQUEST_ENTITY_TOO_LARGE_413, response.getStatus());
+        Assert.assertEquals(10, resultFields.size());
+        Assert.assertTrue(failed.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testAsyncFormFieldViews() throws Exception
+    {
+        Fields requestFields = new Fields(true);
+        StringBuilder form = new StringBuilder();
+        for (int i = 0; i < 100; ++i)
+        {
+            // Escaped values, so that escapes span buffers
+            String value = i % 2 == 0 ? "value" + i : "value " + i + " \u00e9&=%";
+            requestFields.put("name" + i, value);
+            if (i > 0)
+                form.append('&');
+            form.append("name").append(i).append('=').append(URLEncoder.encode(value, "UTF-8"));
+        }
+
+        Fields resultFields = new Fields(true);
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                Processor<ByteBuffer, FormFieldView> processor = new FormFieldViewProcessor();
+                publisher.subscribe(processor);
+                processor.subscribe(new Subscriber<FormFieldView>()
+                {
+                    private final List<FormFieldView> views = new ArrayList<>();
+                    private Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(FormFieldView view)
+                    {
+                        // Only access the views once their buffers have been released.
+                        views.add(view);
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        for (FormFieldView view : views)
+                            resultFields.add(view.getName(), view.getValue());
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        resultFields.clear();
+                        failure.printStackTrace();
+                    }
+                });
+            }
+        });
+
+        byte[] bytes = form.toString().getBytes(StandardCharsets.UTF_8);
+        DeferredContentProvider content = new DeferredContentProvider();
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(content);
+        FutureResponseListener listener = new FutureResponseListener(request);
+        request.send(listener);
+
+        // Small chunks so that fields span buffers.
+        int chunk = 7;
+        for (int offset = 0; offset < bytes.length; offset += chunk)
+        {
+            content.offer(ByteBuffer.wrap(bytes, offset, Math.min(chunk, bytes.length - offset)));
+            if (offset % 70 == 0)
+                Thread.sleep(1);
+        }
+        content.close();
+
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertEquals(requestFields, resultFields);
+    }
+
+    @Test
+    public void testAsyncFormFieldsInvalidEscape() throws Exception
+    {
+        List<Fields.Field> resultFields = new CopyOnWriteArrayList<>();
+        AtomicReference<Throwable> failed = new AtomicReference<>();
+        CountDownLatch cancelled = new CountDownLatch(1);
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                FormFieldProcessor processor = new FormFieldProcessor();
+                // Record the cancellation of the upload by the processor
+                publisher.subscribe(new Subscriber<ByteBuffer>()
+                {
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        processor.onSubscribe(new PooledSubscription<ByteBuffer>()
+                        {
+                            @Override
+                            public void request(long n)
+                            {
+                                subscription.request(n);
+                            }
+
+                            @Override
+                            public void cancel()
+                            {
+                                cancelled.countDown();
+                                subscription.cancel();
+                            }
+
+                            @Override
+                            public void release(ByteBuffer buffer)
+                            {
+                                ReactiveSupport.release(subscription, buffer);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer buffer)
+                    {
+                        processor.onNext(buffer);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        processor.onComplete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        processor.onError(failure);
+                    }
+                });
+                processor.subscribe(new Subscriber<Fields.Field>()
+                {
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(Fields.Field field)
+                    {
+                        resultFields.add(field);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        failed.set(failure);
+                        response.setStatus(HttpStatus.BAD_REQUEST_400);
+                        context.complete();
+                    }
+                });
+            }
+        });
+
+        DeferredContentProvider content = new DeferredContentProvider();
+        AtomicReference<Result> result = new AtomicReference<>();
+        CountDownLatch complete = new CountDownLatch(1);
+        client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(content)
+                .send(r ->
+                {
+                    result.set(r);
+                    complete.countDown();
+                });
+
+        // The upload is cancelled before the rest of the content is sent
+        content.offer(ByteBuffer.wrap("a=1&b=%G1&".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        content.offer(ByteBuffer.wrap("c=3".getBytes(StandardCharsets.UTF_8)));
+        content.close();
+
+        // The server closes the connection with the rest of the content unread, which may fail
+        // the request while it is still sending, otherwise the response is received
+        Assert.assertTrue(complete.await(5, TimeUnit.SECONDS));
+        if (result.get().isSucceeded())
+            Assert.assertEquals(HttpStatus.BAD_REQUEST_400, result.get().getResponse().getStatus());
+        Assert.assertEquals(1, resultFields.size());
+        Assert.assertEquals("a", resultFields.get(0).getName());
+        Assert.assertTrue(failed.get() instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testMultiPart() throws Exception
+    {
+        String boundary = "XyZzY-boundary";
+        byte[] file = new byte[300 * 1024];
+        Random random = new Random(42);
+        random.nextBytes(file);
+        // Near misses of the delimiter in the content
+        byte[] nearMiss = ("\r\n--" + boundary.substring(0, boundary.length() - 1) + "!").getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < 100; ++i)
+        {
+            int offset = random.nextInt(file.length - nearMiss.length);
+            int length = nearMiss.length - (i % nearMiss.length);
+            System.arraycopy(nearMiss, 0, file, offset, length);
+            file[offset + length] = '!';
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + boundary + "\r\n" +
+                "Content-Disposition: form-data; name=\"field\"\r\n" +
+                "\r\n" +
+                "value\r\n" +
+                "--" + boundary + "\r\n" +
+                "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        body.write(file);
+        body.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        byte[] bytes = body.toByteArray();
+
+        Map<String, byte[]> parts = new ConcurrentHashMap<>();
+        Map<String, String> fileNames = new ConcurrentHashMap<>();
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                MultiPartProcessor processor = new MultiPartProcessor(request.getContentType());
+                publisher.subscribe(processor);
+                processor.subscribe(new Subscriber<MultiPartProcessor.Part>()
+                {
+                    private Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(MultiPartProcessor.Part part)
+                    {
+                        if (part.getFileName() != null)
+                            fileNames.put(part.getName(), part.getFileName());
+                        part.subscribe(new Subscriber<ByteBuffer>()
+                        {
+                            private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                            private Subscription partSubscription;
+
+                            @Override
+                            public void onSubscribe(Subscription subscription)
+                            {
+                                partSubscription = subscription;
+                                subscription.request(1);
+                            }
+
+                            @Override
+                            public void onNext(ByteBuffer buffer)
+                            {
+                                while (buffer.hasRemaining())
+                                    content.write(buffer.get());
+                                ReactiveSupport.release(partSubscription, buffer);
+                                partSubscription.request(1);
+                            }
+
+                            @Override
+                            public void onComplete()
+                            {
+                                parts.put(part.getName(), content.toByteArray());
+                                subscription.request(1);
+                            }
+
+                            @Override
+                            public void onError(Throwable failure)
+                            {
+                                failure.printStackTrace();
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        parts.clear();
+                        failure.printStackTrace();
+                    }
+                });
+            }
+        });
+
+        DeferredContentProvider content = new DeferredContentProvider();
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .method(HttpMethod.POST)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .timeout(10, TimeUnit.SECONDS)
+                .content(content);
+        FutureResponseListener listener = new FutureResponseListener(request);
+        request.send(listener);
+
+        // Random chunks, so that delimiters span buffers
+        for (int offset = 0; offset < bytes.length;)
+        {
+            int length = Math.min(1 + random.nextInt(4096), bytes.length - offset);
+            content.offer(ByteBuffer.wrap(bytes, offset, length));
+            offset += length;
+        }
+        content.close();
+
+        ContentResponse response = listener.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertEquals(2, parts.size());
+        Assert.assertArrayEquals("value".getBytes(StandardCharsets.ISO_8859_1), parts.get("field"));
+        Assert.assertArrayEquals(file, parts.get("file"));
+        Assert.assertEquals("data.bin", fileNames.get("file"));
+    }
+
+    /**
+     * Feeds content to a multipart processor, whose subscriber may throw from onNext.
+     * @return the failure of the subscriber, or null if not failed
+     */
+    private Throwable parseMultiPart(String content, boolean throwing, AtomicReference<Boolean> cancelled)
+    {
+        MultiPartProcessor processor = new MultiPartProcessor("multipart/form-data; boundary=B");
+        AtomicReference<Throwable> failed = new AtomicReference<>();
+        cancelled.set(false);
+        processor.onSubscribe(new Subscription()
+        {
+            @Override
+            public void request(long n)
+            {
+            }
+
+            @Override
+            public void cancel()
+            {
+                cancelled.set(true);
+            }
+        });
+        processor.subscribe(new Subscriber<MultiPartProcessor.Part>()
+        {
+            @Override
+            public void onSubscribe(Subscription subscription)
+            {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(MultiPartProcessor.Part part)
+            {
+                if (throwing)
+                    throw new IllegalStateException("subscriber failure");
+            }
+
+            @Override
+            public void onComplete()
+            {
+            }
+
+            @Override
+            public void onError(Throwable failure)
+            {
+                failed.set(failure);
+            }
+        });
+        processor.onNext(ByteBuffer.wrap(content.getBytes(StandardCharsets.ISO_8859_1)));
+        return failed.get();
+    }
+
+    @Test
+    public void testMultiPartFailures() throws Exception
+    {
+        AtomicReference<Boolean> cancelled = new AtomicReference<>();
+
+        // Invalid content fails the subscriber and cancels the upload
+        Throwable failure = parseMultiPart("--B\r\nInvalid header\r\n\r\n", false, cancelled);
+        Assert.assertTrue(failure instanceof IllegalStateException);
+        Assert.assertTrue(cancelled.get());
+
+        // A subscriber that throws cancels the upload, but is not signalled again
+        failure = parseMultiPart("--B\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nvalue", true, cancelled);
+        Assert.assertNull(failure);
+        Assert.assertTrue(cancelled.get());
+    }
+
+    @Test
+    public void testMultiPartInvalidPartRequest() throws Exception
+    {
+        MultiPartProcessor processor = new MultiPartProcessor("multipart/form-data; boundary=B");
+        List<String> signals = new CopyOnWriteArrayList<>();
+        processor.onSubscribe(new Subscription()
+        {
+            @Override
+            public void request(long n)
+            {
+            }
+
+            @Override
+            public void cancel()
+            {
+                signals.add("cancel");
+            }
+        });
+        processor.subscribe(new Subscriber<MultiPartProcessor.Part>()
+        {
+            @Override
+            public void onSubscribe(Subscription subscription)
+            {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(MultiPartProcessor.Part part)
+            {
+                String name = part.getName();
+                part.subscribe(new Subscriber<ByteBuffer>()
+                {
+                    private Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer buffer)
+                    {
+                        if ("a".equals(name))
+                        {
+                            // The failure is only signalled once onNext() has returned
+                            signals.add("a onNext");
+                            subscription.request(-1);
+                            signals.add("a returned");
+                        }
+                        else
+                        {
+                            subscription.request(1);
+                        }
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        signals.add(name + " onComplete");
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        signals.add(name + " onError " + failure.getClass().getSimpleName());
+                    }
+                });
+            }
+
+            @Override
+            public void onComplete()
+            {
+                signals.add("onComplete");
+            }
+
+            @Override
+            public void onError(Throwable failure)
+            {
+                signals.add("onError");
+            }
+        });
+
+        // Only the part is failed, and the other parts are still published
+        processor.onNext(ByteBuffer.wrap(("--B\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nvalue\r\n" +
+                "--B\r\nContent-Disposition: form-data; name=\"b\"\r\n\r\nvalue\r\n--B--\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+        processor.onComplete();
+        Assert.assertEquals(Arrays.asList("a onNext", "a returned", "a onError IllegalArgumentException", "b onComplete", "onComplete"), signals);
+    }
+
+    @Test
+    public void testGzipContentInflated() throws Exception
+    {
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context, request.getParameter("raw") == null);
+                publisher.subscribe(new AsyncIOSubscriber(context, AsyncIOSubscriber::send));
+            }
+        });
+
+        // Compressible content, that inflates to many buffers per compressed buffer
+        byte[] bytes = new byte[1024 * 1024];
+        Random random = new Random();
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = (byte)('a' + random.nextInt(4));
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped))
+        {
+            gzip.write(bytes);
+        }
+
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .header("Content-Encoding", "gzip")
+                .content(new BytesContentProvider(gzipped.toByteArray()));
+        FutureResponseListener listener = new FutureResponseListener(request, 2 * bytes.length);
+        request.send(listener);
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertArrayEquals(bytes, response.getContent());
+
+        // Content is only inflated when asked for
+        response = client.newRequest("localhost", connector.getLocalPort())
+                .param("raw", "true")
+                .header("Content-Encoding", "gzip")
+                .content(new BytesContentProvider(gzipped.toByteArray()))
+                .timeout(5, TimeUnit.SECONDS)
+                .send();
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertArrayEquals(gzipped.toByteArray(), response.getContent());
+    }
+
+    @Test
+    public void testDeflateContentInflated() throws Exception
+    {
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context, true);
+                publisher.subscribe(new AsyncIOSubscriber(context, AsyncIOSubscriber::send));
+            }
+        });
+
+        byte[] bytes = new byte[1024 * 1024];
+        Random random = new Random();
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = (byte)('a' + random.nextInt(4));
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(deflated))
+        {
+            deflate.write(bytes);
+        }
+        byte[] content = deflated.toByteArray();
+
+        // Jetty queues at most 64 chunks parsed from one read, so chunks are not much smaller
+        for (int chunk : new int[]{512, 4096, 1024 * 1024})
+        {
+            DeferredContentProvider provider = new DeferredContentProvider();
+            Request request = client.newRequest("localhost", connector.getLocalPort())
+                    .header("Content-Encoding", "deflate")
+                    .content(provider);
+            FutureResponseListener listener = new FutureResponseListener(request, 2 * bytes.length);
+            request.send(listener);
+            for (int offset = 0; offset < content.length; offset += chunk)
+                provider.offer(ByteBuffer.wrap(content, offset, Math.min(chunk, content.length - offset)));
+            provider.close();
+            ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+
+            Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+            Assert.assertArrayEquals(bytes, response.getContent());
+        }
+    }
+
+    @Test
+    public void testGzipInflationRatioExceeded() throws Exception
+    {
+        AtomicReference<Throwable> failed = new AtomicReference<>();
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context, true);
+                publisher.subscribe(new Subscriber<ByteBuffer>()
+                {
+                    private Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer buffer)
+                    {
+                        ReactiveSupport.release(subscription, buffer);
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        failed.set(failure);
+                        response.setStatus(HttpStatus.REQUEST_ENTITY_TOO_LARGE_413);
+                        context.complete();
+                    }
+                });
+            }
+        });
+
+        // Zeros inflate by about 1000 times
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped))
+        {
+            gzip.write(new byte[16 * 1024 * 1024]);
+        }
+
+        ContentResponse response = client.newRequest("localhost", connector.getLocalPort())
+                .header("Content-Encoding", "gzip")
+                .content(new BytesContentProvider(gzipped.toByteArray()))
+                .timeout(5, TimeUnit.SECONDS)
+                .send();
+
+        Assert.assertEquals(HttpStatus.REQUEST_ENTITY_TOO_LARGE_413, response.getStatus());
+        Assert.assertTrue(failed.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testGzipResponse() throws Exception
+    {
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                response.setHeader("Content-Encoding", "gzip");
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                Processor<ByteBuffer, ByteBuffer> processor = new DeflatingProcessor(new ArrayByteBufferPool(), 4096);
+                publisher.subscribe(processor);
+                processor.subscribe(new AsyncIOSubscriber(context, AsyncIOSubscriber::send));
+            }
+        });
+
+        byte[] bytes = new byte[1024 * 1024];
+        Random random = new Random();
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = (byte)('a' + random.nextInt(4));
+
+        // Check the raw gzip content
+        client.getContentDecoderFactories().clear();
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .content(new BytesContentProvider(bytes));
+        FutureResponseListener listener = new FutureResponseListener(request, 2 * bytes.length);
+        request.send(listener);
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertEquals("gzip", response.getHeaders().get("Content-Encoding"));
+        byte[] gzipped = response.getContent();
+        Assert.assertTrue(gzipped.length < bytes.length / 2);
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(gzipped)))
+        {
+            byte[] buffer = new byte[4096];
+            for (int read = gzip.read(buffer); read >= 0; read = gzip.read(buffer))
+                inflated.write(buffer, 0, read);
+        }
+        Assert.assertArrayEquals(bytes, inflated.toByteArray());
+    }
+
+    @Test
+    public void testBase64() throws Exception
+    {
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                ArrayByteBufferPool pool = new ArrayByteBufferPool();
+                Processor<ByteBuffer, ByteBuffer> decoder = new Base64DecodingProcessor(pool, 1000);
+                Processor<ByteBuffer, ByteBuffer> encoder = new Base64EncodingProcessor(pool, 1000);
+                publisher.subscribe(decoder);
+                decoder.subscribe(encoder);
+                encoder.subscribe(new AsyncIOSubscriber(context, AsyncIOSubscriber::send));
+            }
+        });
+
+        byte[] bytes = new byte[100 * 1024 + 1];
+        new Random().nextBytes(bytes);
+        // MIME content has line breaks, that the decoder skips
+        byte[] mime = Base64.getMimeEncoder().encode(bytes);
+        byte[] expected = Base64.getEncoder().encode(bytes);
+
+        DeferredContentProvider content = new DeferredContentProvider();
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(content);
+        FutureResponseListener listener = new FutureResponseListener(request, 2 * expected.length);
+        request.send(listener);
+
+        // Odd chunks, so that groups span buffers
+        Random random = new Random();
+        for (int offset = 0; offset < mime.length;)
+        {
+            int length = Math.min(1 + random.nextInt(3000), mime.length - offset);
+            content.offer(ByteBuffer.wrap(mime, offset, length));
+            offset += length;
+        }
+        content.close();
+
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertArrayEquals(expected, response.getContent());
+    }
+
+    @Test
+    public void testBase64InvalidContent() throws Exception
+    {
+        // Every buffer leased by the decoder is released when the content is invalid
+        AtomicInteger leased = new AtomicInteger();
+        ArrayByteBufferPool pool = new ArrayByteBufferPool()
+        {
+            @Override
+            public ByteBuffer acquire(int size, boolean direct)
+            {
+                leased.incrementAndGet();
+                return super.acquire(size, direct);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer)
+            {
+                leased.decrementAndGet();
+                super.release(buffer);
+            }
+        };
+
+        for (String content : new String[]{"QUJD=QQ", "QUJDQ=", "QU!D"})
+        {
+            Base64DecodingProcessor decoder = new Base64DecodingProcessor(pool, 1000);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            decoder.onSubscribe(new Subscription()
+            {
+                @Override
+                public void request(long n)
+                {
+                }
+
+                @Override
+                public void cancel()
+                {
+                }
+            });
+            decoder.subscribe(new Subscriber<ByteBuffer>()
+            {
+                private Subscription subscription;
+
+                @Override
+                public void onSubscribe(Subscription subscription)
+                {
+                    this.subscription = subscription;
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(ByteBuffer buffer)
+                {
+                    ReactiveSupport.release(subscription, buffer);
+                }
+
+                @Override
+                public void onComplete()
+                {
+                }
+
+                @Override
+                public void onError(Throwable x)
+                {
+                    failure.set(x);
+                }
+            });
+            decoder.onNext(ByteBuffer.wrap(content.getBytes(StandardCharsets.US_ASCII)));
+            Assert.assertTrue(content, failure.get() instanceof IllegalStateException);
+            Assert.assertEquals(content, 0, leased.get());
+        }
+    }
+
+    @Test
+    public void testJsonTokens() throws Exception
+    {
+        StringBuilder json = new StringBuilder("[");
+        List<String> expected = new ArrayList<>();
+        expected.add("START_ARRAY");
+        for (int i = 0; i < 2000; ++i)
+        {
+            if (i > 0)
+                json.append(",\n");
+            json.append("{\"id\": ").append(i).append(", \"name\": \"n\\u00e9\\\"\u00e9").append(i)
+                    .append("\", \"ok\": true, \"v\": null, \"x\": -1.5e3, \"tags\": [\"a\", false]}");
+            expected.addAll(Arrays.asList("START_OBJECT", "NAME(id)", "NUMBER(" + i + ")",
+                    "NAME(name)", "STRING(n\u00e9\"\u00e9" + i + ")", "NAME(ok)", "TRUE", "NAME(v)", "NULL",
+                    "NAME(x)", "NUMBER(-1.5e3)", "NAME(tags)", "START_ARRAY", "STRING(a)", "FALSE", "END_ARRAY",
+                    "END_OBJECT"));
+        }
+        json.append("]");
+        expected.add("END_ARRAY");
+
+        List<String> tokens = new ArrayList<>();
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                Processor<ByteBuffer, JsonToken> processor = new JsonTokenProcessor();
+                publisher.subscribe(processor);
+                processor.subscribe(new Subscriber<JsonToken>()
+                {
+                    private Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        this.subscription = subscription;
+                        subscription.request(16);
+                    }
+
+                    @Override
+                    public void onNext(JsonToken token)
+                    {
+                        tokens.add(token.toString());
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        tokens.clear();
+                        failure.printStackTrace();
+                        context.complete();
+                    }
+                });
+            }
+        });
+
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        DeferredContentProvider content = new DeferredContentProvider();
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(content);
+        FutureResponseListener listener = new FutureResponseListener(request);
+        request.send(listener);
+
+        // Odd chunks, so that tokens span buffers
+        Random random = new Random();
+        for (int offset = 0; offset < bytes.length;)
+        {
+            int length = Math.min(1 + random.nextInt(3000), bytes.length - offset);
+            content.offer(ByteBuffer.wrap(bytes, offset, length));
+            offset += length;
+        }
+        content.close();
+
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertEquals(expected, tokens);
+    }
+
+    @Test
+    public void testRecordFraming() throws Exception
+    {
+        Random random = new Random();
+        List<String> expected = new ArrayList<>();
+        ByteArrayOutputStream delimited = new ByteArrayOutputStream();
+        ByteArrayOutputStream prefixed = new ByteArrayOutputStream();
+        for (int i = 0; i < 500; ++i)
+        {
+            char[] chars = new char[random.nextInt(1000)];
+            for (int c = 0; c < chars.length; ++c)
+                chars[c] = (char)('a' + random.nextInt(26));
+            byte[] record = new String(chars).getBytes(StandardCharsets.UTF_8);
+            expected.add(new String(chars));
+            delimited.write(record);
+            delimited.write('\n');
+            prefixed.write(record.length >> 8);
+            prefixed.write(record.length);
+            prefixed.write(record);
+        }
+
+        Map<String, List<String>> records = new ConcurrentHashMap<>();
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                String framing = request.getHeader("X-Framing");
+                Processor<ByteBuffer, ByteBuffer> processor = "length".equals(framing)
+                        ? new LengthPrefixedRecordProcessor(2) : new DelimitedRecordProcessor();
+                List<String> received = new ArrayList<>();
+                publisher.subscribe(processor);
+                processor.subscribe(new Subscriber<ByteBuffer>()
+                {
+                    private Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer record)
+                    {
+                        received.add(StandardCharsets.UTF_8.decode(record.slice()).toString());
+                        ReactiveSupport.release(subscription, record);
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        records.put(framing, received);
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        failure.printStackTrace();
+                        context.complete();
+                    }
+                });
+            }
+        });
+
+        for (String framing : Arrays.asList("delimited", "length"))
+        {
+            byte[] bytes = ("length".equals(framing) ? prefixed : delimited).toByteArray();
+            DeferredContentProvider content = new DeferredContentProvider();
+            Request request = client.newRequest("localhost", connector.getLocalPort())
+                    .header("X-Framing", framing)
+                    .timeout(5, TimeUnit.SECONDS)
+                    .content(content);
+            FutureResponseListener listener = new FutureResponseListener(request);
+            request.send(listener);
+
+            // Odd chunks, so that records and prefixes span buffers
+            for (int offset = 0; offset < bytes.length;)
+            {
+                int length = Math.min(1 + random.nextInt(3000), bytes.length - offset);
+                content.offer(ByteBuffer.wrap(bytes, offset, length));
+                offset += length;
+            }
+            content.close();
+
+            ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+            Assert.assertEquals(expected, records.get(framing));
+        }
+    }
+
+    @Test
+    public void testCharsetDecoding() throws Exception
+    {
+        // Characters of 1 to 4 bytes, so that they are split across buffers
+        String alphabet = "a\u00e9\u20ac\ud83d\ude00";
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random();
+        for (int i = 0; i < 50000; ++i)
+        {
+            int index = random.nextInt(4);
+            builder.append(alphabet, index, index == 3 ? 5 : index + 1);
+        }
+        String text = builder.toString();
+
+        AtomicReference<String> decoded = new AtomicReference<>();
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                Publisher<ByteBuffer> publisher = ReactiveSupport.getPublisher(context);
+                Processor<ByteBuffer, CharBuffer> processor = new CharsetDecodingProcessor(1000);
+                publisher.subscribe(processor);
+                processor.subscribe(new Subscriber<CharBuffer>()
+                {
+                    private final StringBuilder chars = new StringBuilder();
+                    private Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(CharBuffer buffer)
+                    {
+                        chars.append(buffer);
+                        ReactiveSupport.release(subscription, buffer);
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        decoded.set(chars.toString());
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        failure.printStackTrace();
+                        context.complete();
+                    }
+                });
+            }
+        });
+
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        DeferredContentProvider content = new DeferredContentProvider();
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(content);
+        FutureResponseListener listener = new FutureResponseListener(request);
+        request.send(listener);
+
+        // Odd chunks, so that characters span buffers
+        for (int offset = 0; offset < bytes.length;)
+        {
+            int length = Math.min(1 + random.nextInt(3000), bytes.length - offset);
+            content.offer(ByteBuffer.wrap(bytes, offset, length));
+            offset += length;
+        }
+        content.close();
+
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertEquals(text, decoded.get());
+    }
+
+    @Test
+    public void testExecutorProcessor() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                // The request publisher is signalled from the executor threads
+                AsyncContext context = request.startAsync();
+                ReactiveSupport.pipe(context, context, new ExecutorProcessor<>(executor, 4));
+            }
+        });
+
+        try
+        {
+            byte[] bytes = new byte[4 * 1024 * 1024];
+            new Random().nextBytes(bytes);
+            ContentResponse response = sendChunked(client.newRequest("localhost", connector.getLocalPort()), bytes, bytes.length);
+            Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+            Assert.assertArrayEquals(bytes, response.getContent());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExecutorProcessorInvalidRequest() throws Exception
+    {
+        List<ByteBuffer> released = new CopyOnWriteArrayList<>();
+        CountDownLatch cancelled = new CountDownLatch(1);
+        ExecutorProcessor<ByteBuffer> processor = new ExecutorProcessor<>(Runnable::run, 4);
+        processor.onSubscribe(new PooledSubscription<ByteBuffer>()
+        {
+            @Override
+            public void request(long n)
+            {
+            }
+
+            @Override
+            public void cancel()
+            {
+                cancelled.countDown();
+            }
+
+            @Override
+            public void release(ByteBuffer buffer)
+            {
+                released.add(buffer);
+            }
+        });
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        processor.subscribe(new Subscriber<ByteBuffer>()
+        {
+            @Override
+            public void onSubscribe(Subscription subscription)
+            {
+                subscription.request(-1);
+            }
+
+            @Override
+            public void onNext(ByteBuffer buffer)
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void onComplete()
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(Throwable x)
+            {
+                failure.set(x);
+            }
+        });
+        Assert.assertEquals(0, cancelled.getCount());
+        Assert.assertTrue(failure.get() instanceof IllegalArgumentException);
+
+        // An item still in flight from the cancelled publisher is released, not queued
+        ByteBuffer item = ByteBuffer.allocate(16);
+        processor.onNext(item);
+        Assert.assertEquals(1, released.size());
+        Assert.assertSame(item, released.get(0));
+    }
+
+    @Test
+    public void testParallelMap() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                // Invert the bytes on the executor threads, which signal the request publisher
+                AsyncContext context = request.startAsync();
+                ReactiveSupport.pipe(context, context, new ParallelMapProcessor<ByteBuffer, ByteBuffer>(executor, buffer ->
+                {
+                    ByteBuffer inverted = ByteBuffer.allocate(buffer.remaining());
+                    while (buffer.hasRemaining())
+                        inverted.put((byte)~buffer.get());
+                    inverted.flip();
+                    return inverted;
+                }, 4));
+            }
+        });
+
+        try
+        {
+            byte[] bytes = new byte[4 * 1024 * 1024];
+            new Random().nextBytes(bytes);
+            byte[] expected = new byte[bytes.length];
+            for (int i = 0; i < bytes.length; ++i)
+                expected[i] = (byte)~bytes[i];
+            ContentResponse response = sendChunked(client.newRequest("localhost", connector.getLocalPort()), bytes, bytes.length);
+            Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+            Assert.assertArrayEquals(expected, response.getContent());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPipe() throws Exception
+    {
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                ArrayByteBufferPool pool = new ArrayByteBufferPool();
+                ReactiveSupport.pipe(context, context, new Base64EncodingProcessor(pool, 4096));
+            }
+        });
+
+        byte[] bytes = new byte[1024 * 1024];
+        new Random().nextBytes(bytes);
+        byte[] expected = Base64.getEncoder().encode(bytes);
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(new BytesContentProvider(bytes));
+        FutureResponseListener listener = new FutureResponseListener(request, expected.length);
+        request.send(listener);
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertArrayEquals(expected, response.getContent());
+    }
+
+    @Test
+    public void testPipeFailure() throws Exception
+    {
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                ArrayByteBufferPool pool = new ArrayByteBufferPool();
+                ReactiveSupport.pipe(context, context, new Base64DecodingProcessor(pool, 4096));
+            }
+        });
+
+        ContentResponse response = client.newRequest("localhost", connector.getLocalPort())
+                .content(new StringContentProvider("not*base64"))
+                .timeout(5, TimeUnit.SECONDS)
+                .send();
+
+        Assert.assertEquals(HttpStatus.INTERNAL_SERVER_ERROR_500, response.getStatus());
+    }
+
+    @Test
+    public void testProxy() throws Exception
+    {
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                if ("/origin".equals(request.getPathInfo()))
+                {
+                    ReactiveSupport.pipe(context, context);
+                    return;
+                }
+
+                // Stream the request content to the origin and its response content back
+                Request proxied = client.newRequest("localhost", connector.getLocalPort())
+                        .method(request.getMethod())
+                        .path("/origin");
+                ReactiveSupport.getPublisher(context).subscribe(new ClientRequestSubscriber(proxied));
+                ClientResponsePublisher publisher = new ClientResponsePublisher(proxied);
+                publisher.subscribe(new AsyncIOSubscriber(context, AsyncIOSubscriber::send));
+                proxied.send(publisher);
+            }
+        });
+
+        byte[] bytes = new byte[1024 * 1024];
+        new Random().nextBytes(bytes);
+        DeferredContentProvider content = new DeferredContentProvider();
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .method(HttpMethod.POST)
+                .path("/proxy")
+                .timeout(5, TimeUnit.SECONDS)
+                .content(content);
+        FutureResponseListener listener = new FutureResponseListener(request, bytes.length);
+        request.send(listener);
+
+        Random random = new Random();
+        for (int offset = 0; offset < bytes.length;)
+        {
+            int length = Math.min(1 + random.nextInt(4096), bytes.length - offset);
+            content.offer(ByteBuffer.wrap(bytes, offset, length));
+            offset += length;
+        }
+        content.close();
+
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertArrayEquals(bytes, response.getContent());
+    }
+
+    @Test
+    public void testBroadcast() throws Exception
+    {
+        byte[] bytes = new byte[1024 * 1024];
+        new Random().nextBytes(bytes);
+        byte[] expectedDigest = MessageDigest.getInstance("SHA-256").digest(bytes);
+
+        List<byte[]> digests = new CopyOnWriteArrayList<>();
+        CountDownLatch digested = new CountDownLatch(2);
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                BroadcastProcessor broadcast = new BroadcastProcessor(3);
+                ReactiveSupport.getPublisher(context).subscribe(broadcast);
+                // Echo the content while two other subscribers digest it at their own pace
+                broadcast.subscribe(new AsyncIOSubscriber(context, AsyncIOSubscriber::send));
+                for (int i = 0; i < 2; ++i)
+                {
+                    int prefetch = 1 + 3 * i;
+                    broadcast.subscribe(new Subscriber<ByteBuffer>()
+                    {
+                        private Subscription subscription;
+                        private MessageDigest digest;
+
+                        @Override
+                        public void onSubscribe(Subscription subscription)
+                        {
+                            this.subscription = subscription;
+                            try
+                            {
+                                digest = MessageDigest.getInstance("SHA-256");
+                            }
+                            catch (NoSuchAlgorithmException x)
+                            {
+                                throw new IllegalStateException(x);
+                            }
+                            subscription.request(prefetch);
+                        }
+
+                        @Override
+                        public void onNext(ByteBuffer buffer)
+                        {
+                            digest.update(buffer);
+                            ReactiveSupport.release(subscription, buffer);
+                            subscription.request(1);
+                        }
+
+                        @Override
+                        public void onComplete()
+                        {
+                            digests.add(digest.digest());
+                            digested.countDown();
+                        }
+
+                        @Override
+                        public void onError(Throwable failure)
+                        {
+                            failure.printStackTrace();
+                        }
+                    });
+                }
+            }
+        });
+
+        DeferredContentProvider content = new DeferredContentProvider();
+        Request request = client.newRequest("localhost", connector.getLocalPort())
+                .timeout(5, TimeUnit.SECONDS)
+                .content(content);
+        FutureResponseListener listener = new FutureResponseListener(request, bytes.length);
+        request.send(listener);
+
+        Random random = new Random();
+        for (int offset = 0; offset < bytes.length;)
+        {
+            int length = Math.min(1 + random.nextInt(4096), bytes.length - offset);
+            content.offer(ByteBuffer.wrap(bytes, offset, length));
+            offset += length;
+        }
+        content.close();
+
+        ContentResponse response = listener.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertArrayEquals(bytes, response.getContent());
+        Assert.assertTrue(digested.await(5, TimeUnit.SECONDS));
+        for (byte[] digest : digests)
+            Assert.assertArrayEquals(expectedDigest, digest);
+    }
+
+    /**
+     * Broadcasts buffers with a maximum lag of 2 to two subscribers that keep up and one that
+     * is stalled, recording the signals of each subscriber and the upstream releases and cancel.
+     */
+    private static class LagProbe
+    {
+        private final List<ByteBuffer> released = new CopyOnWriteArrayList<>();
+        private final List<List<String>> signals = new ArrayList<>();
+        private final BroadcastProcessor processor = new BroadcastProcessor(3);
+        private volatile boolean cancelled;
+
+        private LagProbe(boolean dropLagging)
+        {
+            processor.setMaxLag(2);
+            processor.setDropLagging(dropLagging);
+            processor.onSubscribe(new PooledSubscription<ByteBuffer>()
+            {
+                @Override
+                public void request(long n)
+                {
+                }
+
+                @Override
+                public void cancel()
+                {
+                    cancelled = true;
+                }
+
+                @Override
+                public void release(ByteBuffer buffer)
+                {
+                    released.add(buffer);
+                }
+            });
+            for (int i = 0; i < 3; ++i)
+            {
+                boolean stalled = i == 2;
+                List<String> received = new CopyOnWriteArrayList<>();
+                signals.add(received);
+                processor.subscribe(new Subscriber<ByteBuffer>()
+                {
+                    private Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        this.subscription = subscription;
+                        if (!stalled)
+                            subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer buffer)
+                    {
+                        received.add("onNext");
+                        ReactiveSupport.release(subscription, buffer);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        received.add("onComplete");
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        received.add("onError " + failure.getClass().getSimpleName());
+                    }
+                });
+            }
+        }
+
+        private void publish(int buffers)
+        {
+            for (int i = 0; i < buffers; ++i)
+                processor.onNext(ByteBuffer.allocate(16));
+        }
+    }
+
+    @Test
+    public void testBroadcastDropLagging() throws Exception
+    {
+        try
+        {
+            new BroadcastProcessor(2).setMaxLag(0);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException x)
+        {
+            // A subscriber cannot lag by no buffers
+        }
+
+        LagProbe probe = new LagProbe(true);
+        probe.publish(5);
+        probe.processor.onComplete();
+
+        // The stalled subscriber is dropped on the third buffer, while the others complete
+        List<String> expected = Arrays.asList("onNext", "onNext", "onNext", "onNext", "onNext", "onComplete");
+        Assert.assertEquals(expected, probe.signals.get(0));
+        Assert.assertEquals(expected, probe.signals.get(1));
+        Assert.assertEquals(Arrays.asList("onError IllegalStateException"), probe.signals.get(2));
+        Assert.assertFalse(probe.cancelled);
+        Assert.assertEquals(5, probe.released.size());
+    }
+
+    @Test
+    public void testBroadcastLaggingFails() throws Exception
+    {
+        LagProbe probe = new LagProbe(false);
+        probe.publish(3);
+
+        // The stalled subscriber fails the stream on the third buffer
+        List<String> expected = Arrays.asList("onNext", "onNext", "onError IllegalStateException");
+        Assert.assertEquals(expected, probe.signals.get(0));
+        Assert.assertEquals(expected, probe.signals.get(1));
+        Assert.assertEquals(Arrays.asList("onError IllegalStateException"), probe.signals.get(2));
+        Assert.assertTrue(probe.cancelled);
+        Assert.assertEquals(3, probe.released.size());
+    }
+
+    @Test
+    public void testDigest() throws Exception
+    {
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                String algorithm = request.getHeader("Content-MD5") != null ? "MD5" : "SHA-256";
+                DigestProcessor processor;
+                try
+                {
+                    processor = new DigestProcessor(MessageDigest.getInstance(algorithm));
+                }
+                catch (NoSuchAlgorithmException x)
+                {
+                    throw new ServletException(x);
+                }
+                processor.setExpectedDigest(DigestProcessor.getExpectedDigest(request, algorithm));
+                ReactiveSupport.getPublisher(context).subscribe(processor);
+                processor.subscribe(new Subscriber<ByteBuffer>()
+                {
+                    private Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer buffer)
+                    {
+                        ReactiveSupport.release(subscription, buffer);
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        try
+                        {
+                            response.getOutputStream().write(processor.getDigest());
+                        }
+                        catch (IOException x)
+                        {
+                            x.printStackTrace();
+                        }
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        response.setStatus(HttpStatus.BAD_REQUEST_400);
+                        context.complete();
+                    }
+                });
+            }
+        });
+
+        byte[] bytes = new byte[1024 * 1024];
+        new Random().nextBytes(bytes);
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(bytes);
+
+        ContentResponse response = client.newRequest("localhost", connector.getLocalPort())
+                .header("Digest", "MD5=AAAA, SHA-256=" + Base64.getEncoder().encodeToString(sha256))
+                .content(new BytesContentProvider(bytes))
+                .timeout(5, TimeUnit.SECONDS)
+                .send();
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertArrayEquals(sha256, response.getContent());
+
+        // A Content-MD5 that does not match the content
+        byte[] md5 = MessageDigest.getInstance("MD5").digest(new byte[1]);
+        response = client.newRequest("localhost", connector.getLocalPort())
+                .header("Content-MD5", Base64.getEncoder().encodeToString(md5))
+                .content(new BytesContentProvider(bytes))
+                .timeout(5, TimeUnit.SECONDS)
+                .send();
+        Assert.assertEquals(HttpStatus.BAD_REQUEST_400, response.getStatus());
+    }
+
+    @Test
+    public void testSpillToDisk() throws Exception
+    {
+        CountDownLatch uploaded = new CountDownLatch(1);
+
+        prepareServer(new HttpServlet()
+        {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+            {
+                AsyncContext context = request.startAsync();
+                SpillingProcessor processor = new SpillingProcessor(new ArrayByteBufferPool(), 4096, 64 * 1024);
+                ReactiveSupport.getPublisher(context).subscribe(processor);
+                processor.subscribe(new Subscriber<ByteBuffer>()
+                {
+                    private Subscription subscription;
+                    private MessageDigest digest;
+
+                    @Override
+                    public void onSubscribe(Subscription subscription)
+                    {
+                        this.subscription = subscription;
+                        try
+                        {
+                            digest = MessageDigest.getInstance("SHA-256");
+                        }
+                        catch (NoSuchAlgorithmException x)
+                        {
+                            throw new IllegalStateException(x);
+                        }
+                        // Only start consuming once the whole upload has been read
+                        new Thread(() ->
+                        {
+                            try
+                            {
+                                if (uploaded.await(5, TimeUnit.SECONDS))
+                                    subscription.request(1);
+                            }
+                            catch (InterruptedException x)
+                            {
+                                subscription.cancel();
+                            }
+                        }).start();
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer buffer)
+                    {
+                        digest.update(buffer);
+                        ReactiveSupport.release(subscription, buffer);
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onComplete()
+                    {
+                        try
+                        {
+                            response.getOutputStream().write(digest.digest());
+                        }
+                        catch (IOException x)
+                        {
+                            x.printStackTrace();
+                        }
+                        context.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable failure)
+                    {
+                        failure.printStackTrace();
+                        response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
+                        context.complete();
+                    }
+                });
+            }
+        });
+
+        // Far more than the socket buffers, so the upload only completes if it is read eagerly
+        byte[] bytes = new byte[8 * 1024 * 1024];
+        new Random().nextBytes(bytes);
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(bytes);
+
+        ContentResponse response = client.newRequest("localhost", connector.getLocalPort())
+                .content(new BytesContentProvider(bytes))
+                .onRequestSuccess(request -> uploaded.countDown())
+                .timeout(10, TimeUnit.SECONDS)
+                .send();
+        Assert.assertEquals(HttpStatus.OK_200, response.getStatus());
+        Assert.assertArrayEquals(sha256, response.getContent());
+    }
+
+    @Test
+    public void testSpillReleaseUntracked() throws Exception
+    {
+        // Everything is spilled, so every buffer published is read back from the pool
+        List<ByteBuffer> released = new CopyOnWriteArrayList<>();
+        SpillingProcessor processor = new SpillingProcessor(new ArrayByteBufferPool(), 4096, 0);
+        processor.onSubscribe(new PooledSubscription<ByteBuffer>()
+        {
+            @Override
+            public void request(long n)
+            {
+            }
+
+            @Override
+            public void cancel()
+            {
+            }
+
+            @Override
+            public void release(ByteBuffer buffer)
+            {
+                released.add(buffer);
+            }
+        });
+        List<ByteBuffer> received = new ArrayList<>();
+        AtomicReference<Subscription> subscription = new AtomicReference<>();
+        processor.subscribe(new Subscriber<ByteBuffer>()
+        {
+            @Override
+            public void onSubscribe(Subscription s)
+            {
+                subscription.set(s);
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer buffer)
+            {
+                received.add(buffer);
+            }
+
+            @Override
+            public void onComplete()
+            {
+            }
+
+            @Override
+            public void onError(Throwable failure)
+            {
+                failure.printStackTrace();
+            }
+        });
+
+        List<ByteBuffer> published = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            published.add(buffer);
+            processor.onNext(buffer);
+        }
+        processor.onComplete();
+        Assert.assertEquals(100, received.size());
+        Assert.assertEquals(published, released);
+
+        // The oldest buffers are no longer tracked, and are dropped rather than given to the publisher
+        for (ByteBuffer buffer : received)
+            ReactiveSupport.release(subscription.get(), buffer);
+        Assert.assertEquals(100, released.size());
+        for (int i = 0; i < released.size(); i++)
+            Assert.assertSame(published.get(i), released.get(i));
+    }
+
+    @Test
+    public void testSpillLargerThanMax() throws Exception
+    {
+        Path directory = Files.createTempDirectory("spill");
+        try
+        {
+            AtomicBoolean cancelled = new AtomicBoolean();
+            SpillingProcessor processor = new SpillingProcessor(new ArrayByteBufferPool(), 4096, 0);
+            processor.setDirectory(directory);
+            processor.setMaxSpillSize(64);
+            processor.onSubscribe(new PooledSubscription<ByteBuffer>()
+            {
+                @Override
+                public void request(long n)
+                {
+                }
+
+                @Override
+                public void cancel()
+                {
+                    cancelled.set(true);
+                }
+
+                @Override
+                public void release(ByteBuffer buffer)
+                {
+                }
+            });
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            processor.subscribe(new Subscriber<ByteBuffer>()
+            {
+                @Override
+                public void onSubscribe(Subscription s)
+                {
+                    // Nothing is read back, so the content stays on disk
+                }
+
+                @Override
+                public void onNext(ByteBuffer buffer)
+                {
+                }
+
+                @Override
+                public void onComplete()
+                {
+                }
+
+                @Override
+                public void onError(Throwable x)
+                {
+                    failure.set(x);
+                }
+            });
+
+            for (int i = 0; i < 5 && !cancelled.get(); i++)
+                processor.onNext(ByteBuffer.allocate(16));
+
+            Assert.assertTrue(cancelled.get());
+            Assert.assertTrue(failure.get() instanceof IllegalStateException);
+            Assert.assertEquals(0, directory.toFile().list().length);
+        }
+        finally
+        {
+            Files.delete(directory);
+        }
     }
 }